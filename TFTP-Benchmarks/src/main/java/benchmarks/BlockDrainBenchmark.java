@@ -0,0 +1,87 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//The receiving side of BlockFillBenchmark, writes a whole file out a block at a time
+//fileOutputStream is what every WRITE path does with each DATA block it gets, fileChannel is the same through a channel
+//Throughput is whole files per second, multiply by fileSize for MB/s
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class BlockDrainBenchmark {
+
+    @Param({"1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"512", "1468", "65464"})
+    public int blockSize;
+
+    private File file;
+    //A received DATA packet, 4 byte header then the block
+    private byte[] packet;
+
+    @Setup(Level.Trial)
+    public void setup() throws IOException
+    {
+        file = File.createTempFile("tftp-block-drain", ".bin");
+        file.deleteOnExit();
+        packet = new byte[blockSize + 4];
+        new Random(42).nextBytes(packet);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Benchmark
+    public long fileOutputStream() throws IOException
+    {
+        long written = 0;
+        try (OutputStream fileOutputStream = new FileOutputStream(file))
+        {
+            while (written < fileSize)
+            {
+                int length = (int)Math.min(blockSize, fileSize - written);
+                fileOutputStream.write(packet, 4, length);
+                written += length;
+            }
+        }
+        return written;
+    }
+
+    @Benchmark
+    public long fileChannel() throws IOException
+    {
+        long written = 0;
+        ByteBuffer block = ByteBuffer.wrap(packet);
+        try (FileChannel fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+        {
+            while (written < fileSize)
+            {
+                int length = (int)Math.min(blockSize, fileSize - written);
+                block.clear().position(4).limit(4 + length);
+                while (block.hasRemaining())
+                {
+                    fileChannel.write(block);
+                }
+                written += length;
+            }
+        }
+        return written;
+    }
+}
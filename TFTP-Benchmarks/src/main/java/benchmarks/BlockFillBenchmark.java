@@ -0,0 +1,168 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.ByteBuffer;
+import java.nio.file.Files;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Reads a whole file block by block, comparing the FileInputStream.read() per byte loop every send path used to have
+//with FileBlockSource (one read per block, or copies out of a mapping for big files) filling a pooled direct packet buffer
+//the way the UDP server now does
+//blockCacheHit is the UDP server's BlockCache once every block of the file is in it, i.e. every transfer after the first
+//Throughput is whole files per second, multiply by fileSize for MB/s
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 2)
+@Measurement(iterations = 3, time = 5)
+@Fork(1)
+public class BlockFillBenchmark {
+
+    //16MB is past FileBlockSource's mapping threshold, 1MB isn't
+    @Param({"1048576", "16777216"})
+    public int fileSize;
+
+    @Param({"512", "1468", "65464"})
+    public int blockSize;
+
+    private File file;
+    private byte[] buffer;
+    private ByteBuffer packet;
+    private MethodHandle openBlockSource;
+    private MethodHandle fill;
+    private MethodHandle close;
+    private MethodHandle newBlockKey;
+    private MethodHandle cacheRead;
+    private Object blockCache;
+    private String cacheKeyPath;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        file = File.createTempFile("tftp-block-fill", ".bin");
+        file.deleteOnExit();
+        byte[] contents = new byte[fileSize];
+        new Random(42).nextBytes(contents);
+        Files.write(file.toPath(), contents);
+
+        buffer = new byte[blockSize + 4];
+        packet = ByteBuffer.allocateDirect(blockSize + 4);
+
+        Class<?> blockSourceClass = TFTPModules.loadClass("TFTP-UDP-Server", "FileBlockSource");
+        MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+        openBlockSource = lookup.findConstructor(blockSourceClass, MethodType.methodType(void.class, File.class))
+                .asType(MethodType.methodType(Object.class, File.class));
+        fill = lookup.findVirtual(blockSourceClass, "fill", MethodType.methodType(int.class, ByteBuffer.class, int.class))
+                .asType(MethodType.methodType(int.class, Object.class, ByteBuffer.class, int.class));
+        close = lookup.findVirtual(blockSourceClass, "close", MethodType.methodType(void.class))
+                .asType(MethodType.methodType(void.class, Object.class));
+
+        Class<?> blockCacheClass = TFTPModules.loadClass("TFTP-UDP-Server", "BlockCache");
+        Class<?> blockKeyClass = TFTPModules.loadClass("TFTP-UDP-Server", "BlockCache$BlockKey");
+        newBlockKey = lookup.findConstructor(blockKeyClass, MethodType.methodType(void.class, String.class, long.class, long.class, int.class, long.class))
+                .asType(MethodType.methodType(Object.class, String.class, long.class, long.class, int.class, long.class));
+        cacheRead = lookup.findVirtual(blockCacheClass, "read", MethodType.methodType(int.class, blockKeyClass, blockSourceClass, ByteBuffer.class))
+                .asType(MethodType.methodType(int.class, Object.class, Object.class, Object.class, ByteBuffer.class));
+        //Room for the whole file, so nothing is ever evicted
+        blockCache = blockCacheClass.getConstructor(long.class).newInstance(2L * fileSize + blockSize);
+        cacheKeyPath = file.getCanonicalPath();
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        file.delete();
+    }
+
+    @Benchmark
+    public long perByteFileInputStream(Blackhole blackhole) throws IOException
+    {
+        //The loop the send paths had before FileBlockSource
+        long total = 0;
+        try (InputStream fileInputStream = new FileInputStream(file))
+        {
+            boolean lastDataSent = false;
+            while (!lastDataSent)
+            {
+                int bufferIndex = 4;
+                while (bufferIndex < blockSize + 4)
+                {
+                    int nextByte = fileInputStream.read();
+                    if (nextByte == -1)
+                    {
+                        lastDataSent = true;
+                        break;
+                    }
+                    buffer[bufferIndex] = (byte)nextByte;
+                    bufferIndex++;
+                }
+                total += bufferIndex - 4;
+                blackhole.consume(buffer);
+            }
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long fileBlockSource(Blackhole blackhole) throws Throwable
+    {
+        long total = 0;
+        Object blockSource = (Object)openBlockSource.invokeExact(file);
+        try
+        {
+            int filled;
+            do
+            {
+                //Block goes after the 4 byte header
+                packet.clear().position(4);
+                filled = (int)fill.invokeExact(blockSource, packet, blockSize);
+                total += filled;
+                blackhole.consume(packet);
+            }
+            while (filled == blockSize);
+        }
+        finally
+        {
+            close.invokeExact(blockSource);
+        }
+        return total;
+    }
+
+    @Benchmark
+    public long blockCacheHit(Blackhole blackhole) throws Throwable
+    {
+        long total = 0;
+        long lastModified = file.lastModified();
+        Object blockSource = (Object)openBlockSource.invokeExact(file);
+        try
+        {
+            int filled;
+            long blockIndex = 0;
+            do
+            {
+                //A new key per block, same as TFTPTransfer
+                Object key = (Object)newBlockKey.invokeExact(cacheKeyPath, lastModified, (long)fileSize, blockSize, blockIndex++);
+                packet.clear().position(4);
+                filled = (int)cacheRead.invokeExact(blockCache, key, blockSource, packet);
+                total += filled;
+                blackhole.consume(packet);
+            }
+            while (filled == blockSize);
+        }
+        finally
+        {
+            close.invokeExact(blockSource);
+        }
+        return total;
+    }
+}
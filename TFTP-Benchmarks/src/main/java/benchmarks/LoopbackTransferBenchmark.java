@@ -0,0 +1,198 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.PrintStream;
+import java.lang.reflect.Constructor;
+import java.lang.reflect.Field;
+import java.lang.reflect.Method;
+import java.nio.file.Files;
+import java.util.Arrays;
+import java.util.List;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+//Whole transfers over loopback, through the real server and client of each protocol
+//The server runs in the benchmark JVM and the client's runTFTPCommand is called directly for every operation
+//Throughput is transfers per second, the "bytes" counter next to it is bytes per second (divide by 1048576 for MB/s)
+//and sample time gives the latency distribution of a single transfer
+//Add "-prof gc" for allocation rate, e.g. java -jar target/benchmarks.jar LoopbackTransfer -prof gc
+//Servers take the same options as on the command line through serverArgs, e.g. -p serverArgs=--event-loop
+//4GB transfers are left out by default as a single one takes a while, ask for them with -p fileSize=4294967296
+@State(Scope.Benchmark)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.SECONDS)
+@Warmup(iterations = 2, time = 5)
+@Measurement(iterations = 3, time = 10)
+@Fork(1)
+public class LoopbackTransferBenchmark {
+
+    @Param({"UDP", "TCP"})
+    public String protocol;
+
+    @Param({"READ", "WRITE"})
+    public String command;
+
+    @Param({"1024", "1048576", "67108864"})
+    public long fileSize;
+
+    @Param({""})
+    public String serverArgs;
+
+    //TCP only, has the client ask for the whole file as one stream instead of blocks
+    @Param({"false"})
+    public boolean tcpStream;
+
+    @State(Scope.Thread)
+    @AuxCounters(AuxCounters.Type.OPERATIONS)
+    public static class TransferredBytes {
+        public long bytes;
+    }
+
+    private File directory;
+    //The file the client sends or receives, and the file the server sends or receives
+    private File clientFile;
+    private File serverFile;
+    private Thread server;
+    private Method runCommand;
+    private Object clientCommand;
+    private PrintStream standardOutput;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        directory = Files.createTempDirectory("tftp-loopback").toFile();
+        clientFile = new File(directory, "client.bin");
+        serverFile = new File(directory, "server.bin");
+        writeRandomFile(command.equals("READ") ? serverFile : clientFile, fileSize);
+
+        //Both ends print a few lines per transfer, which would otherwise end up mixed into the results
+        standardOutput = System.out;
+        System.setOut(new PrintStream(OutputStream.nullOutputStream()));
+
+        server = startServer();
+
+        Class<?> clientClass = TFTPModules.loadClass("TFTP-" + protocol + "-Client", "TFTPClient");
+        setStatic(clientClass, "hostname", "127.0.0.1");
+        //Paths are absolute so it doesn't matter what directory either end thinks it is in
+        setStatic(clientClass, "clientControlledTargetFilename", clientFile.getAbsolutePath());
+        setStatic(clientClass, "serverControlledTargetFilename", serverFile.getAbsolutePath());
+        if (protocol.equals("TCP"))
+        {
+            setStatic(clientClass, "useStreamMode", tcpStream);
+        }
+
+        Class<?> commandClass = TFTPModules.loadClass("TFTP-" + protocol + "-Client", "TFTPClient$Command");
+        clientCommand = Arrays.stream(commandClass.getEnumConstants()).filter(constant -> constant.toString().equals(command)).findFirst().orElseThrow();
+        runCommand = clientClass.getMethod("runTFTPCommand", commandClass);
+        runCommand.setAccessible(true);
+    }
+
+    @TearDown(Level.Trial)
+    public void tearDown()
+    {
+        System.setOut(standardOutput);
+        clientFile.delete();
+        serverFile.delete();
+        directory.delete();
+    }
+
+    @Benchmark
+    public void transfer(TransferredBytes transferredBytes) throws Exception
+    {
+        //A write is only done once the server has all of it, and the client can return before that happens
+        //so we wait for the file to fill up. It is removed first so the last operation's copy can't count
+        File received = command.equals("READ") ? clientFile : serverFile;
+        received.delete();
+
+        runCommand.invoke(null, clientCommand);
+
+        long deadline = System.nanoTime() + TimeUnit.SECONDS.toNanos(60);
+        while (received.length() != fileSize)
+        {
+            if (System.nanoTime() > deadline)
+            {
+                throw new IllegalStateException("Transfer ended with " + received.length() + " of " + fileSize + " bytes");
+            }
+            Thread.onSpinWait();
+        }
+
+        transferredBytes.bytes += fileSize;
+    }
+
+    private Thread startServer() throws Exception
+    {
+        List<String> arguments = Arrays.asList(serverArgs.trim().split("\\s+"));
+        boolean useVirtualThreads = arguments.contains("--virtual-threads");
+        Class<?> serverClass = TFTPModules.loadClass("TFTP-" + protocol + "-Server", "TFTPServer");
+        Thread serverThread;
+
+        if (protocol.equals("UDP"))
+        {
+            int eventLoopCount = 0;
+            int eventLoopIndex = arguments.indexOf("--event-loop");
+            if (eventLoopIndex >= 0)
+            {
+                eventLoopCount = eventLoopIndex + 1 < arguments.size() && arguments.get(eventLoopIndex + 1).matches("\\d+")
+                        ? Integer.parseInt(arguments.get(eventLoopIndex + 1)) : 1;
+            }
+
+            int blockCacheIndex = arguments.indexOf("--block-cache");
+            if (blockCacheIndex >= 0)
+            {
+                long capacity = Long.parseLong(arguments.get(blockCacheIndex + 1)) * 1024 * 1024;
+                Class<?> blockCacheClass = TFTPModules.loadClass("TFTP-UDP-Server", "BlockCache");
+                Object blockCache = blockCacheClass.getConstructor(long.class).newInstance(capacity);
+                TFTPModules.loadClass("TFTP-UDP-Server", "TFTPTransfer").getMethod("setBlockCache", blockCacheClass).invoke(null, blockCache);
+            }
+
+            int listenerCount = 1;
+            int listenersIndex = arguments.indexOf("--listeners");
+            if (listenersIndex >= 0)
+            {
+                listenerCount = Integer.parseInt(arguments.get(listenersIndex + 1));
+            }
+
+            Constructor<?> constructor = serverClass.getConstructor(String.class, int.class, boolean.class, int.class);
+            serverThread = (Thread)constructor.newInstance("TFTP-UDP-Server", eventLoopCount, useVirtualThreads, listenerCount);
+        }
+        else
+        {
+            Constructor<?> constructor = serverClass.getConstructor(String.class, boolean.class, boolean.class);
+            serverThread = (Thread)constructor.newInstance("TFTP-TCP-Server", useVirtualThreads, arguments.contains("--zero-copy"));
+        }
+
+        //The servers run forever, this lets the forked JVM exit once we are done with it
+        serverThread.setDaemon(true);
+        serverThread.start();
+        return serverThread;
+    }
+
+    private static void setStatic(Class<?> owner, String fieldName, Object value) throws ReflectiveOperationException
+    {
+        Field field = owner.getDeclaredField(fieldName);
+        field.setAccessible(true);
+        field.set(null, value);
+    }
+
+    static void writeRandomFile(File file, long size) throws IOException
+    {
+        //The same random megabyte over and over, generating 4GB of fresh randomness would take longer than the transfer
+        byte[] chunk = new byte[1024 * 1024];
+        new Random(42).nextBytes(chunk);
+        try (OutputStream outputStream = new FileOutputStream(file))
+        {
+            long remaining = size;
+            while (remaining > 0)
+            {
+                int length = (int)Math.min(chunk.length, remaining);
+                outputStream.write(chunk, 0, length);
+                remaining -= length;
+            }
+        }
+    }
+}
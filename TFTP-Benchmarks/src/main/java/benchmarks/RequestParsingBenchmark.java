@@ -0,0 +1,87 @@
+package benchmarks;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.nio.charset.StandardCharsets;
+import java.util.Arrays;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+//What each server does with a request before it can start a transfer
+//"plain" is an old style request (just the file name padded with zeros), "options" is what the current clients send
+//Also runs the original parse (everything after the opcode, trimmed) for comparison
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 2)
+@Measurement(iterations = 5, time = 2)
+@Fork(1)
+public class RequestParsingBenchmark {
+
+    @Param({"plain", "options"})
+    public String request;
+
+    private byte[] requestData;
+    private MethodHandle udpSplitRequestFields;
+    private MethodHandle tcpSplitRequestFields;
+
+    @Setup(Level.Trial)
+    public void setup() throws Exception
+    {
+        String fields = request.equals("plain") ? "vmlinuz-6.8.0-generic" : "vmlinuz-6.8.0-generic\0octet\0blksize\0" + "1468\0windowsize\0" + "8\0";
+        //Both clients send their requests as a whole 256 byte buffer, zero padded
+        requestData = new byte[256];
+        requestData[1] = 1;
+        byte[] fieldBytes = fields.getBytes(StandardCharsets.US_ASCII);
+        System.arraycopy(fieldBytes, 0, requestData, 2, fieldBytes.length);
+
+        udpSplitRequestFields = findSplitRequestFields("TFTP-UDP-Server", MethodType.methodType(List.class, byte[].class, int.class));
+        tcpSplitRequestFields = findSplitRequestFields("TFTP-TCP-Server", MethodType.methodType(List.class, byte[].class));
+    }
+
+    private static MethodHandle findSplitRequestFields(String moduleName, MethodType type) throws ReflectiveOperationException
+    {
+        //It is private, but the module's classes are all in an (open) unnamed module so we are allowed in
+        Class<?> serverClass = TFTPModules.loadClass(moduleName, "TFTPServer");
+        return MethodHandles.privateLookupIn(serverClass, MethodHandles.lookup()).findStatic(serverClass, "splitRequestFields", type);
+    }
+
+    @Benchmark
+    public String originalTrim()
+    {
+        return new String(Arrays.copyOfRange(requestData, 2, requestData.length), StandardCharsets.UTF_8).trim();
+    }
+
+    @Benchmark
+    public Map<String, String> udpRequest() throws Throwable
+    {
+        @SuppressWarnings("unchecked")
+        List<String> requestFields = (List<String>)udpSplitRequestFields.invokeExact(requestData, requestData.length);
+        return optionsOf(requestFields);
+    }
+
+    @Benchmark
+    public Map<String, String> tcpRequest() throws Throwable
+    {
+        @SuppressWarnings("unchecked")
+        List<String> requestFields = (List<String>)tcpSplitRequestFields.invokeExact(requestData);
+        return optionsOf(requestFields);
+    }
+
+    private static Map<String, String> optionsOf(List<String> requestFields)
+    {
+        //Same as TFTPServer.run() does with the fields (the filename is trimmed there too)
+        Map<String, String> requestOptions = new LinkedHashMap<>();
+        requestOptions.put("", requestFields.isEmpty() ? "" : requestFields.get(0).trim());
+        for (int i = 2; i + 1 < requestFields.size(); i += 2)
+        {
+            requestOptions.put(requestFields.get(i).toLowerCase(), requestFields.get(i + 1));
+        }
+        return requestOptions;
+    }
+}
@@ -0,0 +1,53 @@
+package benchmarks;
+
+import java.io.File;
+import java.io.UncheckedIOException;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLClassLoader;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+//Loads the compiled classes of one of the TFTP modules in a class loader of its own
+//The modules all put their classes in the default package (and two of them have a TFTPServer, two a TFTPClient)
+//so this is the only way to have more than one of them in the same JVM
+//The modules are found relative to -Dtftp.root, which defaults to the parent of the working directory
+public final class TFTPModules {
+
+    private static final Map<String, ClassLoader> loadedModules = new ConcurrentHashMap<>();
+
+    private TFTPModules() { }
+
+    public static ClassLoader load(String moduleName)
+    {
+        return loadedModules.computeIfAbsent(moduleName, name -> {
+            File classesDirectory = new File(new File(System.getProperty("tftp.root", "..")), name + "/target/classes");
+            if (!classesDirectory.isDirectory())
+            {
+                throw new IllegalStateException(classesDirectory.getAbsolutePath() + " not found, compile " + name + " first");
+            }
+
+            try
+            {
+                //Parent is the platform loader so the module can't see our classes (or any other module's) by accident
+                return new URLClassLoader(name, new URL[]{classesDirectory.toURI().toURL()}, ClassLoader.getPlatformClassLoader());
+            }
+            catch (MalformedURLException e)
+            {
+                throw new UncheckedIOException(e);
+            }
+        });
+    }
+
+    public static Class<?> loadClass(String moduleName, String className)
+    {
+        try
+        {
+            return Class.forName(className, true, load(moduleName));
+        }
+        catch (ClassNotFoundException e)
+        {
+            throw new IllegalStateException(className + " not found in " + moduleName, e);
+        }
+    }
+}
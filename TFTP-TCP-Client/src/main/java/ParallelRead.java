@@ -0,0 +1,192 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.file.StandardOpenOption;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+//Reads one big file over several connections at once, each fetching its own part of it
+//A single TCP stream can't fill a link with a big bandwidth-delay product (its window only grows so fast, and every
+//loss halves it), several streams between them can. Each connection asks for a byte range of the file in stream mode
+//(the "offset" and "length" options) and writes what arrives straight into its part of the target, which is set to the
+//file's full size up front so the parts can land in any order
+//The first connection asks for an empty range to find out how big the file is (the OACK's tsize is always the whole
+//file), then carries on with the first part if the server agreed to a session. A server that doesn't know about ranges
+//sends the whole file in answer to that, which we just take as a normal stream read
+public class ParallelRead {
+
+    //Parts smaller than this aren't worth a connection of their own
+    private static final long MIN_PART_SIZE = 1024 * 1024;
+
+    public static TFTPClient.Result run(String hostname, String serverFilename, String localFilename, int connections)
+    {
+        SocketChannel firstChannel = null;
+        try {
+            firstChannel = connect(hostname);
+            DataOutputStream outToServer = new DataOutputStream(firstChannel.socket().getOutputStream());
+            DataInputStream inFromServer = new DataInputStream(firstChannel.socket().getInputStream());
+
+            TFTPClient.sendRequest(outToServer, TFTPClient.Command.READ, serverFilename, localFilename, true, true, rangeOptions(0, 0));
+            byte[] optionsData = readOptionsAcknowledgement(inFromServer);
+            if (optionsData == null)
+            {
+                //Either the file doesn't exist or the server does not have access to it
+                System.out.println("File could not be read from");
+                return TFTPClient.Result.FAILED;
+            }
+            if (!"1".equals(TFTPClient.readOption(optionsData, "stream")))
+            {
+                //Server only does blocks, so no ranges either. Give up on this connection and read it the normal way
+                firstChannel.close();
+                return TFTPClient.runTFTPCommand(TFTPClient.Command.READ, hostname, serverFilename, localFilename, false);
+            }
+
+            long fileSize = Long.parseLong(TFTPClient.readOption(optionsData, "tsize"));
+            if (TFTPClient.readOption(optionsData, "offset") == null)
+            {
+                //No ranges, the whole file is on its way down this connection
+                try (FileChannel target = FileChannel.open(new File(localFilename).toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE, StandardOpenOption.TRUNCATE_EXISTING))
+                {
+                    receive(firstChannel, target, 0, fileSize);
+                }
+                System.out.println("[Command Run Successfully]");
+                return TFTPClient.Result.SUCCESS;
+            }
+            boolean firstChannelKept = "1".equals(TFTPClient.readOption(optionsData, "session"));
+
+            int parts = (int)Math.max(1, Math.min(connections, fileSize / MIN_PART_SIZE));
+            long partSize = (fileSize + parts - 1) / parts;
+
+            try (RandomAccessFile targetFile = new RandomAccessFile(localFilename, "rw"))
+            {
+                //Full size before any part arrives, so each part has its place in the file waiting for it
+                targetFile.setLength(fileSize);
+                FileChannel target = targetFile.getChannel();
+
+                ExecutorService partReaders = Executors.newFixedThreadPool(parts);
+                try
+                {
+                    List<Future<?>> partsRead = new ArrayList<>();
+                    for (int i = 0; i < parts; i++)
+                    {
+                        long offset = i * partSize;
+                        long length = Math.max(0, Math.min(partSize, fileSize - offset));
+                        SocketChannel channel = i == 0 && firstChannelKept ? firstChannel : null;
+                        partsRead.add(partReaders.submit(() -> {
+                            readPart(channel, hostname, serverFilename, localFilename, target, offset, length);
+                            return null;
+                        }));
+                    }
+                    for (Future<?> partRead : partsRead)
+                    {
+                        partRead.get();
+                    }
+                }
+                catch (ExecutionException e)
+                {
+                    throw new IOException(e.getCause());
+                }
+                catch (InterruptedException e)
+                {
+                    Thread.currentThread().interrupt();
+                    throw new InterruptedIOException();
+                }
+                finally
+                {
+                    partReaders.shutdownNow();
+                }
+            }
+
+            System.out.println("[Command Run Successfully]");
+            return TFTPClient.Result.SUCCESS;
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        } finally {
+            if (firstChannel != null)
+            {
+                try {
+                    firstChannel.close();
+                } catch (IOException ignored) { }
+            }
+        }
+    }
+
+    //channel is null if this part needs a connection of its own
+    private static void readPart(SocketChannel channel, String hostname, String serverFilename, String localFilename, FileChannel target, long offset, long length) throws IOException
+    {
+        if (channel == null)
+        {
+            channel = connect(hostname);
+        }
+
+        try (SocketChannel partChannel = channel)
+        {
+            DataOutputStream outToServer = new DataOutputStream(partChannel.socket().getOutputStream());
+            DataInputStream inFromServer = new DataInputStream(partChannel.socket().getInputStream());
+
+            TFTPClient.sendRequest(outToServer, TFTPClient.Command.READ, serverFilename, localFilename, true, false, rangeOptions(offset, length));
+            byte[] optionsData = readOptionsAcknowledgement(inFromServer);
+            if (optionsData == null)
+            {
+                throw new IOException("Server sent an error for the part at " + offset);
+            }
+
+            //The file could have changed size since the first connection asked, then the parts won't fit together
+            if (!Long.toString(offset).equals(TFTPClient.readOption(optionsData, "offset"))
+                    || !Long.toString(length).equals(TFTPClient.readOption(optionsData, "length")))
+            {
+                throw new IOException("Server sent a different part to the one asked for at " + offset);
+            }
+
+            receive(partChannel, target, offset, length);
+        }
+    }
+
+    private static void receive(SocketChannel channel, FileChannel target, long offset, long length) throws IOException
+    {
+        //Positioned writes straight from the socket, so every part can write into the one file at the same time
+        long position = 0;
+        while (position < length)
+        {
+            long transferred = target.transferFrom(channel, offset + position, length - position);
+            if (transferred == 0)
+            {
+                //A blocking socket only gives us nothing once the server has closed it
+                throw new EOFException("Server closed the connection " + (length - position) + " bytes early");
+            }
+            position += transferred;
+        }
+    }
+
+    //Returns the options the server accepted, or null if it sent an error packet instead
+    private static byte[] readOptionsAcknowledgement(DataInputStream inFromServer) throws IOException
+    {
+        //4 bytes for opcode and then the length of the options
+        byte[] responseHeader = new byte[4];
+        inFromServer.readFully(responseHeader);
+        if (responseHeader[1] == 5) return null;
+
+        int optionsLength = ((responseHeader[2] & 0xFF) << 8) | (responseHeader[3] & 0xFF);
+        byte[] optionsData = new byte[optionsLength];
+        inFromServer.readFully(optionsData);
+        return optionsData;
+    }
+
+    private static String rangeOptions(long offset, long length)
+    {
+        return "offset\0" + offset + "\0" + "length\0" + length + "\0";
+    }
+
+    private static SocketChannel connect(String hostname) throws IOException
+    {
+        //Will throw an IOException if server is not running
+        SocketChannel channel = SocketChannel.open(new InetSocketAddress(hostname, 20001));
+        channel.socket().setTcpNoDelay(true);
+        return channel;
+    }
+}
@@ -2,12 +2,38 @@ import java.io.*;
 import java.net.Socket;
 import java.net.SocketException;
 import java.net.UnknownHostException;
+import java.net.InetSocketAddress;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
 import java.util.Objects;
 import java.util.Scanner;
 
 public class TFTPClient {
 
     public static void main(String[] args) {
+        //"--stream" asks the server to send/receive files as one raw stream rather than in blocks
+        //"--parallel-streams K" reads files over K connections at once, each fetching its own part of the file
+        //"--resume" carries on from where an earlier transfer of the same file broke off (stream mode only, so it
+        //turns that on too, and a resumed read uses a single connection even with --parallel-streams)
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--stream"))
+            {
+                useStreamMode = true;
+            }
+            else if (args[i].equals("--resume"))
+            {
+                useStreamMode = true;
+                resume = true;
+            }
+            else if (args[i].equals("--parallel-streams") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                parallelStreams = Math.max(1, Integer.parseInt(args[++i]));
+            }
+        }
+
         String input = "";
         try(Scanner scanner = new Scanner(System.in))
         {
@@ -66,49 +92,177 @@ public class TFTPClient {
         }
     }
 
-    private enum Command{
+    public enum Command{
         READ,
         WRITE
     }
 
+    //How a transfer ended, FAILED means the server sent an error packet instead of the file
+    //CONNECTION_LOST is only used by TFTPSession.readAll, everywhere else losing the connection is thrown
+    public enum Result{
+        SUCCESS,
+        FAILED,
+        CONNECTION_LOST
+    }
+
     private static String clientControlledTargetFilename;
     private static String hostname;
     private static String serverControlledTargetFilename;
+    //Block size we ask the server for, it can give us a smaller one
+    //TCP isn't limited by datagram size so this can be far bigger than on UDP
+    private static int requestedBlockSize = 65536;
+    //Ask for the whole file as a single stream with no blocks, falls back to blocks if the server says no
+    private static boolean useStreamMode = false;
+    //Reads are split across this many connections at once when it is more than 1 (see ParallelRead)
+    private static int parallelStreams = 1;
+    //Pick up where an earlier transfer of the same file broke off
+    private static boolean resume = false;
 
     public static void runTFTPCommand(Command command) {
-        Socket clientSocket;
+        if (command == Command.READ && parallelStreams > 1 && !resume)
+        {
+            ParallelRead.run(hostname, serverControlledTargetFilename, clientControlledTargetFilename, parallelStreams);
+            return;
+        }
+        runTFTPCommand(command, hostname, serverControlledTargetFilename, clientControlledTargetFilename, useStreamMode, resume);
+    }
 
-        try {
-            //Socket that connects to the server, will throw an IOException if server is not running
-            clientSocket = new Socket(hostname, 20001);
+    //Runs a single transfer on a connection of its own, everything it needs is passed in so any number of these can
+    //run at once (see TFTPBatchClient)
+    public static Result runTFTPCommand(Command command, String hostname, String serverControlledTargetFilename, String clientControlledTargetFilename, boolean useStreamMode) {
+        return runTFTPCommand(command, hostname, serverControlledTargetFilename, clientControlledTargetFilename, useStreamMode, false);
+    }
+
+    //resume picks up a stream transfer that broke off part way through. We tell the server how many bytes of the
+    //file we have (the "offset" option), for a read that is how much of the local file is already there and for a
+    //write it is the size of the local file, and the server answers with an offset saying how much of it it agrees
+    //is done. Only the rest goes over the connection. A server that doesn't know about resuming leaves the offset
+    //out and the whole file is sent as normal
+    public static Result runTFTPCommand(Command command, String hostname, String serverControlledTargetFilename, String clientControlledTargetFilename, boolean useStreamMode, boolean resume) {
+        try (TFTPSession session = new TFTPSession(hostname, false)) {
+            return session.run(command, serverControlledTargetFilename, clientControlledTargetFilename, useStreamMode, resume);
+        }
+    }
 
-            //Used to send messages to the server
-            DataOutputStream outToServer = new DataOutputStream(clientSocket.getOutputStream());
-            //Receive inputs from the server
-            DataInputStream inFromServer = new DataInputStream(clientSocket.getInputStream());
+    //askForSession adds the "session" option, asking the server to keep the connection open afterwards (see TFTPSession)
+    static void sendRequest(DataOutputStream outToServer, Command command, String serverControlledTargetFilename, String clientControlledTargetFilename, boolean useStreamMode, boolean askForSession) throws IOException {
+        sendRequest(outToServer, command, serverControlledTargetFilename, clientControlledTargetFilename, useStreamMode, askForSession, "");
+    }
 
-            byte[] requestBuff = new byte[256];
+    //extraOptions are added to the end of the request as they are, already zero terminated (see ParallelRead)
+    static void sendRequest(DataOutputStream outToServer, Command command, String serverControlledTargetFilename, String clientControlledTargetFilename, boolean useStreamMode, boolean askForSession, String extraOptions) throws IOException {
+        byte[] requestBuff = new byte[256];
 
-            //First we need to send a request
-            if (command == Command.READ)
+        //First we need to send a request
+        if (command == Command.READ)
+        {
+            requestBuff[1] = (byte)1;
+        }
+        else
+        {
+            requestBuff[1] = (byte)2;
+        }
+
+        //Filename, mode and then the block size we want, each as a zero terminated string
+        //Asking for a block size switches the server over to length framed blocks
+        ByteArrayOutputStream requestFields = new ByteArrayOutputStream();
+        requestFields.writeBytes(serverControlledTargetFilename.getBytes(StandardCharsets.UTF_8));
+        requestFields.write(0);
+        requestFields.writeBytes("octet".getBytes(StandardCharsets.US_ASCII));
+        requestFields.write(0);
+        requestFields.writeBytes("blksize".getBytes(StandardCharsets.US_ASCII));
+        requestFields.write(0);
+        requestFields.writeBytes(Integer.toString(requestedBlockSize).getBytes(StandardCharsets.US_ASCII));
+        requestFields.write(0);
+        if (useStreamMode)
+        {
+            //For writes the server needs to know how much is coming (RFC 2349 tsize)
+            String streamOptions = "stream\0" + "1\0";
+            if (command == Command.WRITE)
             {
-                requestBuff[1] = (byte)1;
+                streamOptions += "tsize\0" + new File(clientControlledTargetFilename).length() + "\0";
             }
-            else
+            requestFields.writeBytes(streamOptions.getBytes(StandardCharsets.US_ASCII));
+        }
+        if (askForSession)
+        {
+            requestFields.writeBytes(("session\0" + "1\0").getBytes(StandardCharsets.US_ASCII));
+        }
+        if (command == Command.WRITE)
+        {
+            //Ask the server to tell us once the file is written, we only know it got there when it says so
+            requestFields.writeBytes(("confirm\0" + "1\0").getBytes(StandardCharsets.US_ASCII));
+        }
+        requestFields.writeBytes(extraOptions.getBytes(StandardCharsets.US_ASCII));
+        System.arraycopy(requestFields.toByteArray(), 0, requestBuff, 2, Math.min(requestFields.size(), requestBuff.length - 2));
+
+        outToServer.write(requestBuff);
+    }
+
+    //Everything after the request, the server's answer to it and then the file itself
+    //Tells the session if the server agreed to keep the connection open, and only prints if the session isn't quiet
+    static Result receiveResponse(TFTPSession session, SocketChannel clientChannel, DataInputStream inFromServer, DataOutputStream outToServer, Command command, String clientControlledTargetFilename) {
+        try {
+            //The server answers with an OACK telling us the block size it agreed to, or an error packet
+            //4 bytes for opcode and then the length of the options
+            byte[] responseHeader = new byte[4];
+            inFromServer.readFully(responseHeader);
+
+            if (responseHeader[1] == 5)
             {
-                requestBuff[1] = (byte)2;
+                //Error thrown
+                //For reads this is either because the file doesn't exist or because the server does not have access to it
+                //For writes the server couldn't create or access the file
+                if (!session.isQuiet())
+                {
+                    System.out.println(command == Command.READ ? "File could not be read from" : "File could not be written to");
+                }
+                return Result.FAILED;
             }
 
-            int filenameLength = serverControlledTargetFilename.length();
-            System.arraycopy(serverControlledTargetFilename.getBytes(), 0, requestBuff, 2, filenameLength);
-
-            outToServer.write(requestBuff);
+            int optionsLength = ((responseHeader[2] & 0xFF) << 8) | (responseHeader[3] & 0xFF);
+            byte[] optionsData = new byte[optionsLength];
+            inFromServer.readFully(optionsData);
 
             int blockSize = 512;
+            String blockSizeValue = readOption(optionsData, "blksize");
+            if (blockSizeValue != null)
+            {
+                blockSize = Integer.parseInt(blockSizeValue);
+            }
+            boolean streaming = "1".equals(readOption(optionsData, "stream"));
+            if ("1".equals(readOption(optionsData, "session")))
+            {
+                session.serverKeepsConnection();
+            }
+            //The server will send a final ACK once a write is safely in its file
+            boolean confirmed = "1".equals(readOption(optionsData, "confirm"));
+
+            //Only there if we asked to resume, and then says where the server is starting from
+            long resumeOffset = 0;
+            String offsetValue = readOption(optionsData, "offset");
+            if (offsetValue != null)
+            {
+                resumeOffset = Long.parseLong(offsetValue);
+                if (resumeOffset > 0 && !session.isQuiet())
+                {
+                    System.out.println("Resuming from byte " + resumeOffset);
+                }
+            }
 
-            if (command == Command.READ)
+            if (command == Command.READ && streaming)
+            {
+                //tsize is the whole file, length is what is left of it after the offset
+                long streamLength = offsetValue != null ? Long.parseLong(readOption(optionsData, "length")) : Long.parseLong(readOption(optionsData, "tsize"));
+                receiveStream(clientChannel, new File(clientControlledTargetFilename), resumeOffset, streamLength);
+            }
+            else if (command == Command.WRITE && streaming)
+            {
+                sendStream(clientChannel, new File(clientControlledTargetFilename), resumeOffset);
+            }
+            else if (command == Command.READ)
             {
-                //Take inputs from server in 512 bytes
+                //Take inputs from server a block at a time
                 //Save those to a file
                 File targetFile = new File(clientControlledTargetFilename);
 
@@ -123,54 +277,38 @@ public class TFTPClient {
                     throw new IOException(e);
                 }
 
+                //4 bytes for opcode and block#, then 4 for the length of the data
+                //In this tcp implementation block# is not used
+                //it is kept to be inline with the specification
+                byte[] blockHeader = new byte[8];
+                //Reused for every block, we only ever read as many bytes into it as the header says are coming
+                byte[] receiverBuffer = new byte[blockSize];
+
                 //We use a boolean instead of a while(true) and break as I feel it is more descriptive
                 boolean lastDataReceived = false;
 
                 while (!lastDataReceived)
                 {
-                    //4 bytes for opcode and block#
-                    //In this tcp implementation block# is not used
-                    //it is kept to be inline with the specification
-                    byte[] receiverBuffer = new byte[blockSize +4];
+                    inFromServer.readFully(blockHeader);
 
-                    inFromServer.read(receiverBuffer);
+                    if (blockHeader[1] != 3)
+                    {
+                        throw new IOException("Expected a DATA block, got opcode " + blockHeader[1]);
+                    }
 
-                    if (receiverBuffer[1] == 3)
+                    int lengthOfActualData = ((blockHeader[4] & 0xFF) << 24) | ((blockHeader[5] & 0xFF) << 16) | ((blockHeader[6] & 0xFF) << 8) | (blockHeader[7] & 0xFF);
+                    if (lengthOfActualData < 0 || lengthOfActualData > blockSize)
                     {
-                        if (receiverBuffer[blockSize+3] == 0)
-                        {
-                            lastDataReceived = true;
-                        }
-
-                        //Need to actually write the data
-                        //Need to remove ending blank spaces if this was the last data received
-                        //Otherwise they will also be written to the file
-                        int lengthOfActualData = blockSize;
-
-                        if (lastDataReceived)
-                        {
-                            //Accounting for the discrepancy between blockSize and length of the data
-                            //caused by opcode and block #
-                            lengthOfActualData += 2;
-                            for (int i = blockSize+3; i >= 0; i--)
-                            {
-                                if (receiverBuffer[i] == 0)
-                                {
-                                    lengthOfActualData--;
-                                }
-                            }
-                        }
-
-                        outputStream.write(receiverBuffer, 4, lengthOfActualData);
+                        throw new IOException("Block of " + lengthOfActualData + " bytes is bigger than the agreed block size");
                     }
-                    else if (receiverBuffer[1] == 5)
+
+                    inFromServer.readFully(receiverBuffer, 0, lengthOfActualData);
+                    outputStream.write(receiverBuffer, 0, lengthOfActualData);
+
+                    //Anything shorter than a full block is the final block of data
+                    if (lengthOfActualData < blockSize)
                     {
-                        //Error thrown
-                        //This means the file could not be read
-                        //This is either because the file doesn't exist
-                        //Or because the server does not have access to it
                         lastDataReceived = true;
-                        System.out.println("File could not be read from");
                     }
                 }
 
@@ -179,28 +317,24 @@ public class TFTPClient {
             else
             {
                 File targetFile = new File(clientControlledTargetFilename);
-                FileInputStream inputStream = null;
+                FileBlockSource blockSource = null;
                 try {
-                    inputStream = new FileInputStream(targetFile);
+                    blockSource = new FileBlockSource(targetFile);
                 }
                 catch (IOException e){
                     throw new IOException(e);
                 }
 
                 int blockNumber = 0;
+                //Reused for every block, only the header and the data actually read are sent
+                byte[] bufferToSend = new byte[blockSize+8];
+                //OPCODE
+                bufferToSend[0] = 0;
+                bufferToSend[1] = 3;
 
                 boolean lastDataSent = false;
                 while (!lastDataSent)
                 {
-                    //Write new data to buffer
-                    //Send buffer
-                    //Reset the buffer each iteration
-                    byte[] bufferToSend = new byte[blockSize+4];
-                    //OPCODE
-                    bufferToSend[0] = 0;
-                    bufferToSend[1] = 3;
-
-                    int bufferIndex = 4;
                     blockNumber++;
 
                     //We perform some basic bitwise operations to split this across two bytes
@@ -209,40 +343,113 @@ public class TFTPClient {
                     bufferToSend[2] = (byte)((blockNumber >> 8) & 0xFF);
                     bufferToSend[3] = (byte)(blockNumber & 0xFF);
 
-                    while (bufferIndex < blockSize + 4)
+                    //Read the whole block in one go, skipping the header
+                    //it is only short once we reach the end of the file, a read error is treated the same way
+                    int lengthOfActualData;
+                    try {
+                        lengthOfActualData = blockSource.fill(bufferToSend, 8, blockSize);
+                    } catch (IOException e) {
+                        lengthOfActualData = 0;
+                    }
+
+                    if (lengthOfActualData < blockSize)
                     {
-                        try {
-                            int nextByte = inputStream.read();
-                            if (nextByte == -1)
-                            {
-                                lastDataSent = true;
-                                break;
-                            }
-                            else
-                            {
-                                bufferToSend[bufferIndex] = (byte)nextByte;
-                            }
-                        } catch (IOException e) {
-                            lastDataSent = true;
-                            break;
-                        }
-                        bufferIndex++;
+                        lastDataSent = true;
                     }
 
+                    bufferToSend[4] = (byte)((lengthOfActualData >> 24) & 0xFF);
+                    bufferToSend[5] = (byte)((lengthOfActualData >> 16) & 0xFF);
+                    bufferToSend[6] = (byte)((lengthOfActualData >> 8) & 0xFF);
+                    bufferToSend[7] = (byte)(lengthOfActualData & 0xFF);
+
                     try {
-                        outToServer.write(bufferToSend);
+                        outToServer.write(bufferToSend, 0, lengthOfActualData + 8);
                     } catch (IOException e) {
                         throw new RuntimeException(e);
                     }
                 }
 
-                inputStream.close();
+                blockSource.close();
+            }
+
+            if (command == Command.WRITE && confirmed)
+            {
+                //Everything has been sent, but until the server says so we don't know it was written
+                //If something went wrong on its end the connection closes instead and readFully throws
+                byte[] confirmation = new byte[4];
+                inFromServer.readFully(confirmation);
+                if (confirmation[1] != 4)
+                {
+                    if (!session.isQuiet())
+                    {
+                        System.out.println("File could not be written to");
+                    }
+                    return Result.FAILED;
+                }
             }
 
-            System.out.println("[Command Run Successfully]");
-            clientSocket.close();
+            if (!session.isQuiet())
+            {
+                System.out.println("[Command Run Successfully]");
+            }
+            return Result.SUCCESS;
         } catch (IOException e) {
             throw new RuntimeException(e);
         }
     }
+
+    //The stream is written into the file from offset on, everything before that is kept and anything after it goes
+    private static void receiveStream(SocketChannel channel, File targetFile, long offset, long streamLength) throws IOException
+    {
+        //Drain the socket straight into the file, the data never comes into the Java heap
+        try (FileChannel outputChannel = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.CREATE))
+        {
+            outputChannel.truncate(offset);
+            long position = 0;
+            while (position < streamLength)
+            {
+                long transferred = outputChannel.transferFrom(channel, offset + position, streamLength - position);
+                if (transferred == 0)
+                {
+                    //A blocking socket only gives us nothing once the server has closed it
+                    throw new EOFException("Server closed the connection " + (streamLength - position) + " bytes early");
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    //Sends the file from offset to the end, the server already has everything before that
+    private static void sendStream(SocketChannel channel, File sourceFile, long offset) throws IOException
+    {
+        //The length was already sent as tsize in the request, so this is just the file
+        try (FileChannel inputChannel = FileChannel.open(sourceFile.toPath(), StandardOpenOption.READ))
+        {
+            long streamLength = inputChannel.size();
+            long position = offset;
+            while (position < streamLength)
+            {
+                long transferred = inputChannel.transferTo(position, streamLength - position, channel);
+                if (transferred <= 0 && position >= inputChannel.size())
+                {
+                    throw new EOFException("File shrank during transfer");
+                }
+                position += transferred;
+            }
+        }
+    }
+
+    static String readOption(byte[] optionsData, String optionName)
+    {
+        //Options are zero terminated name/value pairs
+        String[] fields = new String(optionsData, StandardCharsets.US_ASCII).split("\0");
+        for (int i = 0; i + 1 < fields.length; i += 2)
+        {
+            if (fields[i].equalsIgnoreCase(optionName))
+            {
+                return fields[i + 1];
+            }
+        }
+        return null;
+    }
 }
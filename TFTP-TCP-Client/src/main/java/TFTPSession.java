@@ -0,0 +1,162 @@
+import java.io.*;
+import java.net.InetSocketAddress;
+import java.nio.channels.SocketChannel;
+
+//A connection to the server that can carry more than one transfer
+//If askForSession is set every request asks the server to keep the connection open afterwards, and once it has agreed
+//(the "session" option comes back in its OACK) the next transfer goes down the same connection instead of a new one,
+//which saves a handshake and a slow start per file. A server that doesn't know about sessions never agrees, so then
+//every transfer gets a fresh connection, exactly as before
+//Not thread safe, each thread that wants to run transfers needs a session of its own
+public class TFTPSession implements AutoCloseable {
+
+    //How many requests readAll sends before it starts receiving the first file
+    //They sit in the socket buffers until the server gets to them, so this is kept well under what those hold,
+    //otherwise we could be stuck sending requests while the server is stuck sending us a file
+    private static final int MAX_PIPELINED_REQUESTS = 16;
+
+    private final String hostname;
+    private final boolean askForSession;
+    //Transfers only return their Result and don't print anything (see TFTPBatchClient)
+    private final boolean quiet;
+
+    //Null until the first transfer, and again after the server has closed the connection on us
+    //Opened through a channel so stream mode can use transferTo/transferFrom on it
+    private SocketChannel clientChannel;
+    //Used to send messages to the server
+    private DataOutputStream outToServer;
+    //Receive inputs from the server
+    private DataInputStream inFromServer;
+    //The server will take another request on this connection
+    private boolean serverAgreed;
+
+    public TFTPSession(String hostname, boolean askForSession)
+    {
+        this(hostname, askForSession, false);
+    }
+
+    public TFTPSession(String hostname, boolean askForSession, boolean quiet)
+    {
+        this.hostname = hostname;
+        this.askForSession = askForSession;
+        this.quiet = quiet;
+    }
+
+    //Runs a single transfer, throws a RuntimeException if the connection fails (the session can still be used after that,
+    //the next transfer opens a new connection)
+    public TFTPClient.Result run(TFTPClient.Command command, String serverFilename, String localFilename, boolean useStreamMode)
+    {
+        return run(command, serverFilename, localFilename, useStreamMode, false);
+    }
+
+    //resume asks the server to carry on from where an earlier transfer of the file broke off (see TFTPClient)
+    public TFTPClient.Result run(TFTPClient.Command command, String serverFilename, String localFilename, boolean useStreamMode, boolean resume)
+    {
+        try
+        {
+            connect();
+            //How much of the file we have, the local file being read into or the whole of the one being written
+            String resumeOptions = resume ? "offset\0" + new File(localFilename).length() + "\0" : "";
+            TFTPClient.sendRequest(outToServer, command, serverFilename, localFilename, useStreamMode, askForSession, resumeOptions);
+            return receiveResponse(command, localFilename);
+        }
+        catch (IOException e)
+        {
+            close();
+            throw new RuntimeException(e);
+        }
+        catch (RuntimeException e)
+        {
+            close();
+            throw e;
+        }
+    }
+
+    //Reads every file in serverFilenames[i] into localFilenames[i]
+    //Once the server has agreed to a session the requests are pipelined, several go out before the first file comes back
+    //so the server goes straight from one file to the next without waiting a round trip for the next request
+    //A file that was coming in when the connection failed is CONNECTION_LOST rather than thrown, so the ones already
+    //done still count. Requests that had been sent after it are sent again on a new connection
+    public TFTPClient.Result[] readAll(String[] serverFilenames, String[] localFilenames, boolean useStreamMode)
+    {
+        TFTPClient.Result[] results = new TFTPClient.Result[serverFilenames.length];
+        int next = 0;
+        while (next < serverFilenames.length)
+        {
+            try
+            {
+                if (!serverAgreed)
+                {
+                    //We don't know yet if the server will read a second request, so just the one
+                    results[next] = run(TFTPClient.Command.READ, serverFilenames[next], localFilenames[next], useStreamMode);
+                    next++;
+                    continue;
+                }
+
+                int end = Math.min(serverFilenames.length, next + MAX_PIPELINED_REQUESTS);
+                for (int i = next; i < end; i++)
+                {
+                    TFTPClient.sendRequest(outToServer, TFTPClient.Command.READ, serverFilenames[i], localFilenames[i], useStreamMode, true);
+                }
+                for (; next < end; next++)
+                {
+                    results[next] = receiveResponse(TFTPClient.Command.READ, localFilenames[next]);
+                }
+            }
+            catch (IOException | RuntimeException e)
+            {
+                close();
+                results[next] = TFTPClient.Result.CONNECTION_LOST;
+                next++;
+            }
+        }
+        return results;
+    }
+
+    private void connect() throws IOException
+    {
+        if (clientChannel != null) return;
+
+        //Will throw an IOException if server is not running
+        clientChannel = SocketChannel.open(new InetSocketAddress(hostname, 20001));
+        //Requests are small and one follows another down the same connection, don't let Nagle hold them back
+        clientChannel.socket().setTcpNoDelay(true);
+        outToServer = new DataOutputStream(clientChannel.socket().getOutputStream());
+        inFromServer = new DataInputStream(clientChannel.socket().getInputStream());
+    }
+
+    private TFTPClient.Result receiveResponse(TFTPClient.Command command, String localFilename)
+    {
+        TFTPClient.Result result = TFTPClient.receiveResponse(this, clientChannel, inFromServer, outToServer, command, localFilename);
+        if (!serverAgreed)
+        {
+            //The server closes its end once it is done, start afresh next time
+            close();
+        }
+        return result;
+    }
+
+    boolean isQuiet()
+    {
+        return quiet;
+    }
+
+    //Called from TFTPClient when the server's OACK says it will keep the connection open
+    void serverKeepsConnection()
+    {
+        serverAgreed = true;
+    }
+
+    @Override
+    public void close()
+    {
+        if (clientChannel == null) return;
+        try {
+            clientChannel.close();
+        } catch (IOException ignored) { }
+        clientChannel = null;
+        outToServer = null;
+        inFromServer = null;
+        serverAgreed = false;
+    }
+}
@@ -0,0 +1,383 @@
+import com.sun.net.httpserver.HttpServer;
+
+import javax.management.InstanceAlreadyExistsException;
+import javax.management.JMException;
+import javax.management.ObjectName;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.lang.management.ManagementFactory;
+import java.net.InetAddress;
+import java.net.InetSocketAddress;
+import java.nio.charset.StandardCharsets;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.DoubleAdder;
+import java.util.concurrent.atomic.LongAdder;
+
+//Counters and histograms for everything the server does, so it can be watched under load without printing anything
+//per block. Published as a JMX MBean (tftp:type=TCPServer) and, if the server is started with --metrics-port, as
+//Prometheus text on http://127.0.0.1:PORT/metrics
+//TCP does its own resending, so unlike the UDP server there are no retransmits or timeouts of ours to count
+//Connections update these from whatever thread they run on, everything is an adder or atomic so nobody waits on a lock
+public class ServerMetrics implements ServerMetricsMBean {
+
+    public static final ServerMetrics SHARED = new ServerMetrics();
+
+    //Error codes 0-7 are defined by the specification, anything else is counted together after them
+    private static final int ERROR_CODE_COUNT = 9;
+
+    //Fixed buckets, observations are counted in the first bucket whose upper bound they fit under
+    //Counts are kept per bucket and only added up (the way Prometheus wants them) when written out
+    public static final class Histogram{
+        private final double[] upperBounds;
+        //One more than there are bounds, the last is everything bigger (+Inf)
+        private final AtomicLongArray bucketCounts;
+        private final DoubleAdder sum = new DoubleAdder();
+        private final LongAdder count = new LongAdder();
+
+        Histogram(double... upperBounds)
+        {
+            this.upperBounds = upperBounds;
+            this.bucketCounts = new AtomicLongArray(upperBounds.length + 1);
+        }
+
+        public void observe(double value)
+        {
+            int bucket = 0;
+            while (bucket < upperBounds.length && value > upperBounds[bucket])
+            {
+                bucket++;
+            }
+            bucketCounts.incrementAndGet(bucket);
+            sum.add(value);
+            count.increment();
+        }
+
+        public double mean()
+        {
+            long observations = count.sum();
+            return observations == 0 ? 0 : sum.sum() / observations;
+        }
+
+        //Upper bound of the bucket the quantile falls in, so never an under-estimate
+        //Anything past the last bound comes back as infinity
+        public double quantile(double quantile)
+        {
+            long observations = count.sum();
+            if (observations == 0) return 0;
+
+            long wanted = (long)Math.ceil(quantile * observations);
+            long seen = 0;
+            for (int i = 0; i < upperBounds.length; i++)
+            {
+                seen += bucketCounts.get(i);
+                if (seen >= wanted) return upperBounds[i];
+            }
+            return Double.POSITIVE_INFINITY;
+        }
+
+        void write(StringBuilder out, String name, String help)
+        {
+            out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+            out.append("# TYPE ").append(name).append(" histogram\n");
+            long cumulative = 0;
+            for (int i = 0; i < upperBounds.length; i++)
+            {
+                cumulative += bucketCounts.get(i);
+                out.append(name).append("_bucket{le=\"").append(upperBounds[i]).append("\"} ").append(cumulative).append('\n');
+            }
+            cumulative += bucketCounts.get(upperBounds.length);
+            out.append(name).append("_bucket{le=\"+Inf\"} ").append(cumulative).append('\n');
+            out.append(name).append("_sum ").append(String.format(Locale.ROOT, "%f", sum.sum())).append('\n');
+            out.append(name).append("_count ").append(cumulative).append('\n');
+        }
+    }
+
+    private final LongAdder requestsReceived = new LongAdder();
+    //Requests we couldn't do anything with, either not a READ or WRITE or the connection couldn't be set up
+    private final LongAdder requestsRejected = new LongAdder();
+
+    private final LongAdder openConnections = new LongAdder();
+    //Accepts that failed for any reason other than the server shutting down
+    private final LongAdder acceptErrors = new LongAdder();
+
+    private final LongAdder activeTransfers = new LongAdder();
+    //Indexed by TFTPConnection.ConnectionType
+    private final LongAdder[] transfersStarted = newAdders(2);
+    private final LongAdder[] transfersSucceeded = newAdders(2);
+    private final LongAdder[] transfersFailed = newAdders(2);
+
+    private final LongAdder dataBytesSent = new LongAdder();
+    private final LongAdder dataBytesReceived = new LongAdder();
+    private final LongAdder[] errorPacketsSent = newAdders(ERROR_CODE_COUNT);
+
+    //Seconds from the request arriving to the first file data going out (READ) or coming in (WRITE)
+    private final Histogram firstByteSeconds = new Histogram(0.0005, 0.001, 0.0025, 0.005, 0.01, 0.025, 0.05, 0.1, 0.25, 0.5, 1, 2.5, 5, 10);
+    private final Histogram transferDurationSeconds = new Histogram(0.001, 0.005, 0.01, 0.05, 0.1, 0.5, 1, 5, 10, 30, 60, 300);
+
+    private static LongAdder[] newAdders(int count)
+    {
+        LongAdder[] adders = new LongAdder[count];
+        for (int i = 0; i < count; i++)
+        {
+            adders[i] = new LongAdder();
+        }
+        return adders;
+    }
+
+    public void registerMBean(String type)
+    {
+        try
+        {
+            ManagementFactory.getPlatformMBeanServer().registerMBean(this, new ObjectName("tftp:type=" + type));
+        }
+        catch (InstanceAlreadyExistsException ignored)
+        {
+            //A second server in the same process, they share the one set of metrics anyway
+        }
+        catch (JMException e)
+        {
+            System.err.println(e);
+        }
+    }
+
+    //Only listens on loopback, put a proxy (or the Prometheus agent) in front of it to scrape from elsewhere
+    public void startHttpEndpoint(int port) throws IOException
+    {
+        HttpServer httpServer = HttpServer.create(new InetSocketAddress(InetAddress.getLoopbackAddress(), port), 0);
+        httpServer.createContext("/metrics", exchange -> {
+            byte[] body = toPrometheusText().getBytes(StandardCharsets.UTF_8);
+            exchange.getResponseHeaders().set("Content-Type", "text/plain; version=0.0.4; charset=utf-8");
+            exchange.sendResponseHeaders(200, body.length);
+            try (OutputStream responseBody = exchange.getResponseBody())
+            {
+                responseBody.write(body);
+            }
+        });
+        //No executor, so scrapes are answered on the server's own dispatch thread. Plenty for one every few seconds
+        httpServer.start();
+    }
+
+    //Called by the accept loop
+
+    public void connectionOpened()
+    {
+        openConnections.increment();
+    }
+
+    public void connectionClosed()
+    {
+        openConnections.decrement();
+    }
+
+    public void acceptFailed()
+    {
+        acceptErrors.increment();
+    }
+
+    //Called for every request
+
+    public void requestReceived()
+    {
+        requestsReceived.increment();
+    }
+
+    public void requestRejected()
+    {
+        requestsRejected.increment();
+    }
+
+    //Called by each connection as it goes
+
+    public void transferStarted(TFTPConnection.ConnectionType type)
+    {
+        activeTransfers.increment();
+        transfersStarted[type.ordinal()].increment();
+    }
+
+    public void transferFinished(TFTPConnection.ConnectionType type, boolean succeeded, long durationNanos)
+    {
+        activeTransfers.decrement();
+        (succeeded ? transfersSucceeded : transfersFailed)[type.ordinal()].increment();
+        transferDurationSeconds.observe(durationNanos / 1e9);
+    }
+
+    public void firstByte(long latencyNanos)
+    {
+        firstByteSeconds.observe(latencyNanos / 1e9);
+    }
+
+    public void dataSent(long bytes)
+    {
+        dataBytesSent.add(bytes);
+    }
+
+    public void dataReceived(long bytes)
+    {
+        dataBytesReceived.add(bytes);
+    }
+
+    public void errorSent(int errorCode)
+    {
+        errorPacketsSent[errorCodeIndex(errorCode)].increment();
+    }
+
+    private static int errorCodeIndex(int errorCode)
+    {
+        return errorCode >= 0 && errorCode < ERROR_CODE_COUNT - 1 ? errorCode : ERROR_CODE_COUNT - 1;
+    }
+
+    //JMX
+
+    @Override
+    public long getOpenConnections() {
+        return openConnections.sum();
+    }
+
+    @Override
+    public long getAcceptErrors() {
+        return acceptErrors.sum();
+    }
+
+    @Override
+    public long getActiveTransfers() {
+        return activeTransfers.sum();
+    }
+
+    @Override
+    public long getTransfersStarted() {
+        return sum(transfersStarted);
+    }
+
+    @Override
+    public long getTransfersSucceeded() {
+        return sum(transfersSucceeded);
+    }
+
+    @Override
+    public long getTransfersFailed() {
+        return sum(transfersFailed);
+    }
+
+    @Override
+    public long getRequestsReceived() {
+        return requestsReceived.sum();
+    }
+
+    @Override
+    public long getRequestsRejected() {
+        return requestsRejected.sum();
+    }
+
+    @Override
+    public long getDataBytesSent() {
+        return dataBytesSent.sum();
+    }
+
+    @Override
+    public long getDataBytesReceived() {
+        return dataBytesReceived.sum();
+    }
+
+    @Override
+    public long[] getErrorPacketsSent() {
+        return sums(errorPacketsSent);
+    }
+
+    @Override
+    public double getFirstByteMillisMean() {
+        return firstByteSeconds.mean() * 1000;
+    }
+
+    @Override
+    public double getFirstByteMillisP99() {
+        return firstByteSeconds.quantile(0.99) * 1000;
+    }
+
+    @Override
+    public double getTransferDurationMillisMean() {
+        return transferDurationSeconds.mean() * 1000;
+    }
+
+    @Override
+    public double getTransferDurationMillisP99() {
+        return transferDurationSeconds.quantile(0.99) * 1000;
+    }
+
+    private static long sum(LongAdder[] adders)
+    {
+        long total = 0;
+        for (LongAdder adder : adders)
+        {
+            total += adder.sum();
+        }
+        return total;
+    }
+
+    private static long[] sums(LongAdder[] adders)
+    {
+        long[] totals = new long[adders.length];
+        for (int i = 0; i < adders.length; i++)
+        {
+            totals[i] = adders[i].sum();
+        }
+        return totals;
+    }
+
+    //Prometheus
+
+    public String toPrometheusText()
+    {
+        StringBuilder out = new StringBuilder();
+
+        writeHeader(out, "tftp_open_connections", "gauge", "Client connections currently open, idle sessions included");
+        out.append("tftp_open_connections ").append(openConnections.sum()).append('\n');
+        writeHeader(out, "tftp_accept_errors_total", "counter", "Connections that failed to be accepted");
+        out.append("tftp_accept_errors_total ").append(acceptErrors.sum()).append('\n');
+
+        writeHeader(out, "tftp_active_transfers", "gauge", "Transfers currently running");
+        out.append("tftp_active_transfers ").append(activeTransfers.sum()).append('\n');
+
+        writeHeader(out, "tftp_transfers_total", "counter", "Transfers by type and how they ended (started counts every one)");
+        for (TFTPConnection.ConnectionType type : TFTPConnection.ConnectionType.values())
+        {
+            String typeLabel = type.name().toLowerCase(Locale.ROOT);
+            writeLabelled(out, "tftp_transfers_total", "type=\"" + typeLabel + "\",result=\"started\"", transfersStarted[type.ordinal()].sum());
+            writeLabelled(out, "tftp_transfers_total", "type=\"" + typeLabel + "\",result=\"succeeded\"", transfersSucceeded[type.ordinal()].sum());
+            writeLabelled(out, "tftp_transfers_total", "type=\"" + typeLabel + "\",result=\"failed\"", transfersFailed[type.ordinal()].sum());
+        }
+
+        writeHeader(out, "tftp_requests_total", "counter", "Requests received");
+        out.append("tftp_requests_total ").append(requestsReceived.sum()).append('\n');
+        writeHeader(out, "tftp_rejected_requests_total", "counter", "Requests that didn't start a transfer");
+        out.append("tftp_rejected_requests_total ").append(requestsRejected.sum()).append('\n');
+
+        writeHeader(out, "tftp_data_sent_bytes_total", "counter", "File data sent to clients");
+        out.append("tftp_data_sent_bytes_total ").append(dataBytesSent.sum()).append('\n');
+        writeHeader(out, "tftp_data_received_bytes_total", "counter", "File data received from clients and written out");
+        out.append("tftp_data_received_bytes_total ").append(dataBytesReceived.sum()).append('\n');
+
+        writeHeader(out, "tftp_error_packets_total", "counter", "ERROR packets sent by error code (other is anything past 7)");
+        for (int code = 0; code < ERROR_CODE_COUNT; code++)
+        {
+            String codeLabel = code < ERROR_CODE_COUNT - 1 ? Integer.toString(code) : "other";
+            writeLabelled(out, "tftp_error_packets_total", "code=\"" + codeLabel + "\"", errorPacketsSent[code].sum());
+        }
+
+        firstByteSeconds.write(out, "tftp_first_byte_seconds", "Time from a request arriving to its first file data going out (READ) or coming in (WRITE)");
+        transferDurationSeconds.write(out, "tftp_transfer_duration_seconds", "Time from a request arriving to its transfer finishing");
+
+        return out.toString();
+    }
+
+    private static void writeHeader(StringBuilder out, String name, String type, String help)
+    {
+        out.append("# HELP ").append(name).append(' ').append(help).append('\n');
+        out.append("# TYPE ").append(name).append(' ').append(type).append('\n');
+    }
+
+    private static void writeLabelled(StringBuilder out, String name, String labels, long value)
+    {
+        out.append(name).append('{').append(labels).append("} ").append(value).append('\n');
+    }
+}
@@ -0,0 +1,27 @@
+//What ServerMetrics shows over JMX (e.g. in JConsole under tftp:type=TCPServer)
+//Counters only ever go up, a rate is the difference between two reads over the time between them
+public interface ServerMetricsMBean {
+
+    long getOpenConnections();
+    long getAcceptErrors();
+
+    long getActiveTransfers();
+    long getTransfersStarted();
+    long getTransfersSucceeded();
+    long getTransfersFailed();
+
+    long getRequestsReceived();
+    long getRequestsRejected();
+
+    long getDataBytesSent();
+    long getDataBytesReceived();
+
+    //Indexed by error code (0-7 are the codes from the specification, 8 is anything else)
+    long[] getErrorPacketsSent();
+
+    //Percentiles are the upper bound of the histogram bucket they fall in
+    double getFirstByteMillisMean();
+    double getFirstByteMillisP99();
+    double getTransferDurationMillisMean();
+    double getTransferDurationMillisP99();
+}
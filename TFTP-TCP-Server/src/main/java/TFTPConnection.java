@@ -1,16 +1,26 @@
 import java.io.*;
-import java.net.DatagramSocket;
-import java.net.InetAddress;
 import java.net.Socket;
-import java.net.SocketException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.Arrays;
+import java.util.Map;
 
-public class TFTPConnection extends Thread{
+//Runnable rather than a Thread so the server can run it on either a platform or a virtual thread
+public class TFTPConnection implements Runnable{
 
     public enum ConnectionType{
         READ,
         WRITE
     }
 
+    //Largest block a client can ask for in framed mode
+    public static final int MAX_FRAMED_BLOCK_SIZE = 1024 * 1024;
+    //Streams are moved this much at a time, a blocking transferTo/transferFrom would otherwise only come back once
+    //the whole stream had gone and the transfer would look stalled the whole time (see TFTPEventLoop)
+    private static final long STREAM_CHUNK_SIZE = 1024 * 1024;
+
     private ConnectionType type;
     private File targetFile;
 
@@ -18,17 +28,104 @@ public class TFTPConnection extends Thread{
 
     private DataInputStream inFromClient;
     private DataOutputStream outToClient;
-    private InputStream fileInputStream;
-    private OutputStream fileOutputStream;
+    private FileBlockSource fileBlockSource;
+    //Only used in zero copy mode, where the file is sent straight from the page cache instead of through fileBlockSource,
+    //and for streams, which go between the socket and this with transferTo/transferFrom
+    private FileChannel fileChannel;
+    private FileOutputStream fileOutputStream;
+    //Blocks are written through this rather than straight to fileOutputStream, so reading the next block off the
+    //socket doesn't wait for the disk (streamed writes go straight from the socket to the file and don't need it)
+    private WriteBehindFile fileWriter;
 
     private boolean thrownError;
     private int errorCode;
 
-    public TFTPConnection(ConnectionType type, Socket clientSocket, String targetFilename) throws IOException {
+    //Clients that ask for a block size get the framed protocol instead of the original one
+    //Every DATA block then carries its own length ([0, 3, block#, block#, 4 byte length] then the data) so nothing is padded
+    //and the final block is just the first one shorter than blockSize, there is no scanning for zeros
+    //Before anything else we send an OACK ([0, 6, 2 byte length] then the accepted options) so the client knows the block size
+    private boolean framed;
+    private int blockSize = 512;
+
+    //Clients can go further and ask for the file as one raw stream ("stream" option set to 1)
+    //TCP already keeps the data in order and intact, so there are no blocks at all, just tsize (RFC 2349) bytes of file
+    //after the OACK. For reads we tell the client tsize in the OACK, for writes the client tells us in its request
+    private boolean streaming;
+    private long streamLength;
+
+    //Stream reads can ask for just part of the file ("offset" and "length"), so a big file can be fetched over several
+    //connections at once, each with its own part. streamLength is then the length of the part, and the OACK still
+    //gives the whole file's size as tsize so the client knows how to split it up
+    //A stream read with an offset and no length is also how a client resumes a read that broke off part way through.
+    //Stream writes can resume too, the client's offset is how much of its file it has, and we keep as much of what
+    //an earlier attempt left here as that allows and only take the rest (the OACK's offset and length)
+    private boolean ranged;
+    private long rangeOffset;
+    private long fileSize;
+
+    //The client wants to send more requests down this connection once we are done (see TFTPSession)
+    //Only offered alongside blksize or stream, the OACK is how the client finds out we agreed
+    private boolean session;
+
+    //The client wants to hear that a WRITE has reached the file before it reports success ("confirm" set to 1)
+    //Once the file is written and closed we send a final ACK ([0, 4, 0, 0], block# isn't used over TCP). If anything goes
+    //wrong first the connection is closed instead, so the client never takes a failed write for a good one
+    //Only offered alongside blksize or stream, and agreed to in the OACK, so older clients never get an ACK they don't expect
+    private boolean confirm;
+
+    //For ServerMetrics and the TransferLog, the request has already been read by the time we are made
+    private final long requestReceivedAt = System.nanoTime();
+    private boolean firstByteRecorded;
+    private long fileBytes;
+    //How the transfer ended, if it didn't succeed
+    private String failure;
+    //Called whenever data moves either way, the session keeps track of it for the stall watchdog
+    private final Runnable onProgress;
+    //Set from the event loop just before it closes the connection on us for not getting anywhere
+    private volatile boolean stalled;
+
+    public TFTPConnection(ConnectionType type, Socket clientSocket, String targetFilename, Map<String, String> requestOptions, boolean zeroCopy, Runnable onProgress) throws IOException {
         this.type = type;
         this.clientSocket = clientSocket;
+        this.onProgress = onProgress;
 
+        String requestedBlockSize = requestOptions.get("blksize");
+        if (requestedBlockSize != null)
+        {
+            try
+            {
+                //Same lower bound as RFC 2348, but TCP has no datagram size to keep under so the upper bound is ours
+                int value = Integer.parseInt(requestedBlockSize.trim());
+                if (value >= 8)
+                {
+                    blockSize = Math.min(value, MAX_FRAMED_BLOCK_SIZE);
+                    framed = true;
+                }
+            }
+            catch (NumberFormatException ignored) { }
+        }
+
+        //The stream is moved with transferTo/transferFrom, which need the socket's channel
+        if ("1".equals(requestOptions.get("stream")) && clientSocket.getChannel() != null)
+        {
+            if (type == ConnectionType.READ)
+            {
+                streaming = true;
+            }
+            else
+            {
+                //Without the length up front we can't tell a finished write from one that was cut off
+                try
+                {
+                    streamLength = Long.parseLong(requestOptions.getOrDefault("tsize", "").trim());
+                    streaming = streamLength >= 0;
+                }
+                catch (NumberFormatException ignored) { }
+            }
+        }
 
+        session = "1".equals(requestOptions.get("session")) && (framed || streaming);
+        confirm = type == ConnectionType.WRITE && "1".equals(requestOptions.get("confirm")) && (framed || streaming);
 
         this.targetFile = new File(targetFilename);
 
@@ -37,7 +134,21 @@ public class TFTPConnection extends Thread{
 
         if (type == ConnectionType.READ) {
             try {
-                fileInputStream = new FileInputStream(targetFile);
+                //Zero copy needs the socket's channel, which we only have if it was accepted through a ServerSocketChannel
+                if ((zeroCopy || streaming) && clientSocket.getChannel() != null)
+                {
+                    fileChannel = FileChannel.open(targetFile.toPath(), StandardOpenOption.READ);
+                    fileSize = fileChannel.size();
+                    streamLength = fileSize;
+                    if (streaming && requestOptions.containsKey("offset"))
+                    {
+                        setRange(requestOptions.get("offset"), requestOptions.getOrDefault("length", ""), fileSize);
+                    }
+                }
+                else
+                {
+                    fileBlockSource = new FileBlockSource(targetFile);
+                }
             } catch (IOException e) {
                 //Send client error packet
                 thrownError = true;
@@ -48,7 +159,25 @@ public class TFTPConnection extends Thread{
                 //If the file doesn't exist create it
                 this.targetFile.createNewFile();
 
-                fileOutputStream = new FileOutputStream(targetFile);
+                if (streaming)
+                {
+                    fileSize = streamLength;
+                    if (requestOptions.containsKey("offset"))
+                    {
+                        //Resuming, so what is already there stays (the file is cut to size once the write is done)
+                        fileChannel = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE);
+                        setRange(requestOptions.get("offset"), "", Math.min(fileChannel.size(), fileSize));
+                    }
+                    else
+                    {
+                        fileChannel = FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                    }
+                }
+                else
+                {
+                    fileOutputStream = new FileOutputStream(targetFile);
+                    fileWriter = new WriteBehindFile(fileOutputStream.getChannel());
+                }
                 inFromClient = new DataInputStream(clientSocket.getInputStream());
 
             } catch (IOException e) {
@@ -61,6 +190,86 @@ public class TFTPConnection extends Thread{
 
     @Override
     public void run() {
+        ServerMetrics.SHARED.transferStarted(type);
+        try {
+            transfer();
+        } catch (RuntimeException e) {
+            failure = stalled ? "timed out: no data moved in " + TFTPEventLoop.getStallTimeoutSeconds() + "s"
+                    : "failed: " + (e.getCause() != null ? e.getCause() : e);
+            closeFiles();
+            throw e;
+        } finally {
+            long duration = System.nanoTime() - requestReceivedAt;
+            boolean succeeded = !thrownError && failure == null;
+            ServerMetrics.SHARED.transferFinished(type, succeeded, duration);
+            TransferLog.SHARED.log(new TransferLog.Entry(type, clientSocket.getInetAddress(), clientSocket.getPort(), targetFile.getPath(),
+                    fileBytes, duration, succeeded ? "ok" : (failure != null ? failure : "failed"), blockSize, getMode()));
+        }
+    }
+
+    //Each send and receive closes its own file however it ends, but a transfer can fail before it gets that far (sending
+    //the OACK, say). Every stalled transfer ends up failing too (see TFTPEventLoop), so nothing may be left open here
+    private void closeFiles()
+    {
+        if (fileWriter != null)
+        {
+            try {
+                fileWriter.close(false);
+            } catch (IOException ignored) { }
+        }
+        try {
+            if (fileBlockSource != null) fileBlockSource.close();
+        } catch (IOException ignored) { }
+        try {
+            if (fileChannel != null) fileChannel.close();
+        } catch (IOException ignored) { }
+    }
+
+    //maxOffset is as far into the file as the range can start, the end of the file for reads and of what we already
+    //have for writes
+    private void setRange(String requestedOffset, String requestedLength, long maxOffset)
+    {
+        try
+        {
+            //Anything past the end of the file is cut off, a range that starts past it is just empty
+            rangeOffset = Math.min(Math.max(0, Long.parseLong(requestedOffset.trim())), maxOffset);
+            long length = fileSize - rangeOffset;
+            if (!requestedLength.isBlank())
+            {
+                length = Math.min(Math.max(0, Long.parseLong(requestedLength.trim())), length);
+            }
+            streamLength = length;
+            ranged = true;
+        }
+        catch (NumberFormatException e)
+        {
+            //Not a range we understand, the client gets the whole file and can tell from the OACK
+            rangeOffset = 0;
+        }
+    }
+
+    //The event loop is about to close the connection because the transfer has stopped getting anywhere
+    public void markStalled()
+    {
+        stalled = true;
+    }
+
+    //Whether the connection is still in a state where the next request can be read from it
+    //An error packet is a whole response so that is fine, a transfer that was cut short isn't
+    public boolean canTakeAnotherRequest()
+    {
+        return session && (thrownError || failure == null);
+    }
+
+    private String getMode()
+    {
+        if (ranged) return "range";
+        if (streaming) return "stream";
+        if (fileChannel != null) return "zero-copy";
+        return framed ? "framed" : "legacy";
+    }
+
+    private void transfer() {
         //Error thrown catch statement
         if (thrownError)
         {
@@ -80,15 +289,61 @@ public class TFTPConnection extends Thread{
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
+            ServerMetrics.SHARED.errorSent(errorCode);
 
-            System.out.println(getName() + " terminated with error!");
+            if (type == ConnectionType.READ)
+            {
+                failure = "error " + errorCode + ": file could not be read from";
+            }
+            else
+            {
+                failure = "error " + errorCode + ": file could not be written to";
+            }
             return;
         }
 
-        System.out.println("Process of type " + type + " issued");
-        final int blockSize = 512;
+        if (framed || streaming)
+        {
+            try {
+                sendOptionsAcknowledgement();
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
 
-        if (type == ConnectionType.READ)
+        if (type == ConnectionType.READ && streaming)
+        {
+            sendStream();
+        }
+        else if (type == ConnectionType.WRITE && streaming)
+        {
+            receiveStream();
+            confirmWrite();
+        }
+        else if (type == ConnectionType.READ && fileChannel != null)
+        {
+            //Same blocks as below, but the file data never comes into the Java heap
+            //Closed however the send ends, a client that goes away part way through mustn't leave the file open
+            try (FileChannel inputChannel = fileChannel) {
+                //We only find out how much went once it has all gone
+                recordFirstByte();
+                new ZeroCopyFileSender(clientSocket.getChannel(), inputChannel, blockSize, framed, onProgress).sendBlocks();
+                ServerMetrics.SHARED.dataSent(streamLength);
+                fileBytes += streamLength;
+            } catch (IOException e) {
+                throw new RuntimeException(e);
+            }
+        }
+        else if (type == ConnectionType.READ && framed)
+        {
+            sendFramedBlocks();
+        }
+        else if (type == ConnectionType.WRITE && framed)
+        {
+            receiveFramedBlocks();
+            confirmWrite();
+        }
+        else if (type == ConnectionType.READ)
         {
             //4 bytes for opcode and block number
             //block number is unused in this TCP implementation
@@ -102,45 +357,36 @@ public class TFTPConnection extends Thread{
             //We use a boolean instead of a while(true) and break as I feel it is more descriptive
             boolean lastDataSent = false;
 
-            while (!lastDataSent)
-            {
-                //init at 4 so we skip opcode and block#
-                int bufferIndex = 4;
-                blockNumber++;
-                //We perform some basic bitwise operations to split this across two bytes
-                //We don't do this for the opcode because it is constant
-                bufferToSend[2] = (byte)((blockNumber >> 8) & 0xFF);
-                bufferToSend[3] = (byte)(blockNumber & 0xFF);
-
-                while (bufferIndex < blockSize + 4)
+            //Closed however the send ends, same as the framed blocks
+            try (FileBlockSource source = fileBlockSource) {
+                while (!lastDataSent)
                 {
+                    blockNumber++;
+                    //We perform some basic bitwise operations to split this across two bytes
+                    //We don't do this for the opcode because it is constant
+                    bufferToSend[2] = (byte)((blockNumber >> 8) & 0xFF);
+                    bufferToSend[3] = (byte)(blockNumber & 0xFF);
+
+                    //Read the whole block in one go, skipping opcode and block#
+                    //it is only short once we reach the end of the file, a read error is treated the same way
+                    int dataLength;
                     try {
-                        int nextByte = fileInputStream.read();
-                        if (nextByte == -1)
-                        {
-                            lastDataSent = true;
-                            break;
-                        }
-                        else
-                        {
-                            bufferToSend[bufferIndex] = (byte)nextByte;
-                        }
+                        dataLength = source.fill(bufferToSend, 4, blockSize);
                     } catch (IOException e) {
+                        dataLength = 0;
+                    }
+
+                    if (dataLength < blockSize)
+                    {
                         lastDataSent = true;
-                        break;
+                        //The buffer is reused, so clear what is left of the previous block out of the end
+                        //otherwise the client would take it for data
+                        Arrays.fill(bufferToSend, 4 + dataLength, bufferToSend.length, (byte)0);
                     }
-                    bufferIndex++;
-                }
 
-                try {
                     outToClient.write(bufferToSend);
-                } catch (IOException e) {
-                    throw new RuntimeException(e);
+                    countDataSent(dataLength);
                 }
-            }
-
-            try {
-                fileInputStream.close();
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
@@ -159,7 +405,8 @@ public class TFTPConnection extends Thread{
                 byte[] inputBuffer = new byte[blockSize+4];
 
                 try {
-                    inFromClient.read(inputBuffer);
+                    //A single read can return less than a whole block, so wait for all of it
+                    inFromClient.readFully(inputBuffer);
 
                     //Proper opcode
                     if (inputBuffer[1] == 3)
@@ -188,7 +435,8 @@ public class TFTPConnection extends Thread{
                             }
                         }
 
-                        fileOutputStream.write(inputBuffer, 4, lengthOfActualData);
+                        fileWriter.write(inputBuffer, 4, lengthOfActualData);
+                        countDataReceived(lengthOfActualData);
                     }
 
                 } catch (IOException e) {
@@ -197,12 +445,222 @@ public class TFTPConnection extends Thread{
             }
 
             try {
-                fileOutputStream.close();
+                fileWriter.close(true);
             } catch (IOException e) {
                 throw new RuntimeException(e);
             }
         }
+    }
+
+    private void sendOptionsAcknowledgement() throws IOException
+    {
+        //Only the options we have accepted are sent back
+        String acceptedOptions;
+        if (streaming)
+        {
+            acceptedOptions = "stream\0" + "1\0" + "tsize\0" + (ranged ? fileSize : streamLength) + "\0";
+            if (ranged)
+            {
+                acceptedOptions += "offset\0" + rangeOffset + "\0" + "length\0" + streamLength + "\0";
+            }
+        }
+        else
+        {
+            acceptedOptions = "blksize\0" + blockSize + "\0";
+        }
+        if (session)
+        {
+            acceptedOptions += "session\0" + "1\0";
+        }
+        if (confirm)
+        {
+            acceptedOptions += "confirm\0" + "1\0";
+        }
+        byte[] options = acceptedOptions.getBytes(StandardCharsets.US_ASCII);
+        //Header and options in one write, as two small writes the second can sit waiting on the client's delayed ACK
+        byte[] packet = new byte[4 + options.length];
+        packet[1] = 6;
+        packet[2] = (byte)((options.length >> 8) & 0xFF);
+        packet[3] = (byte)(options.length & 0xFF);
+        System.arraycopy(options, 0, packet, 4, options.length);
+        outToClient.write(packet);
+        outToClient.flush();
+    }
+
+    private void sendFramedBlocks()
+    {
+        //One buffer for the whole transfer, each block is written with exactly as many bytes as it holds
+        byte[] bufferToSend = new byte[blockSize + 8];
+        bufferToSend[0] = 0;
+        bufferToSend[1] = 3;
+        int blockNumber = 0;
+        boolean lastDataSent = false;
+
+        //Closed however the send ends, a client that goes away part way through mustn't leave the file open
+        try (FileBlockSource source = fileBlockSource) {
+            while (!lastDataSent)
+            {
+                blockNumber++;
+                bufferToSend[2] = (byte)((blockNumber >> 8) & 0xFF);
+                bufferToSend[3] = (byte)(blockNumber & 0xFF);
+
+                int dataLength;
+                try {
+                    dataLength = source.fill(bufferToSend, 8, blockSize);
+                } catch (IOException e) {
+                    dataLength = 0;
+                }
+
+                if (dataLength < blockSize)
+                {
+                    lastDataSent = true;
+                }
+
+                putLength(bufferToSend, dataLength);
+                outToClient.write(bufferToSend, 0, dataLength + 8);
+                countDataSent(dataLength);
+            }
+
+            outToClient.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void receiveFramedBlocks()
+    {
+        byte[] header = new byte[8];
+        byte[] inputBuffer = new byte[blockSize];
+        boolean lastDataReceived = false;
+
+        try {
+            while (!lastDataReceived)
+            {
+                inFromClient.readFully(header);
+
+                if (header[1] != 3)
+                {
+                    //Anything other than DATA means the client has given up
+                    failure = "client gave up";
+                    break;
+                }
+
+                int dataLength = ((header[4] & 0xFF) << 24) | ((header[5] & 0xFF) << 16) | ((header[6] & 0xFF) << 8) | (header[7] & 0xFF);
+                if (dataLength < 0 || dataLength > blockSize)
+                {
+                    throw new IOException("Block of " + dataLength + " bytes is bigger than the agreed block size");
+                }
+
+                inFromClient.readFully(inputBuffer, 0, dataLength);
+                fileWriter.write(inputBuffer, 0, dataLength);
+                countDataReceived(dataLength);
+
+                if (dataLength < blockSize)
+                {
+                    lastDataReceived = true;
+                }
+            }
+
+            //No point syncing a file the client didn't finish
+            fileWriter.close(failure == null);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void confirmWrite()
+    {
+        //A client that gave up part way through isn't waiting for one
+        if (!confirm || failure != null) return;
+        try {
+            outToClient.write(new byte[]{0, 4, 0, 0});
+            outToClient.flush();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void sendStream()
+    {
+        //The whole file (or the part that was asked for) in as few system calls as the kernel will let us (sendfile
+        //where it is available). Every read is positioned, so parts of the same file can go out on any number of
+        //connections at once
+        //Closed however the send ends, cancelled ranged and parallel downloads close the socket on us all the time
+        SocketChannel socketChannel = clientSocket.getChannel();
+        try (FileChannel inputChannel = fileChannel) {
+            long position = rangeOffset;
+            long end = rangeOffset + streamLength;
+            while (position < end)
+            {
+                long transferred = inputChannel.transferTo(position, Math.min(end - position, STREAM_CHUNK_SIZE), socketChannel);
+                if (transferred <= 0 && position >= inputChannel.size())
+                {
+                    //File has been cut short while we were sending it
+                    throw new EOFException("File shrank during transfer");
+                }
+                position += transferred;
+                countDataSent(transferred);
+            }
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void receiveStream()
+    {
+        //Straight from the socket into the file, the data never comes into the Java heap
+        //A resumed write starts at the end of what we already have, the rest of the file is untouched
+        SocketChannel socketChannel = clientSocket.getChannel();
+        try (FileChannel outputChannel = fileChannel) {
+            long position = 0;
+            while (position < streamLength)
+            {
+                long transferred = outputChannel.transferFrom(socketChannel, rangeOffset + position, Math.min(streamLength - position, STREAM_CHUNK_SIZE));
+                if (transferred == 0)
+                {
+                    //A blocking socket only gives us nothing once the client has closed it
+                    throw new EOFException("Client closed the connection " + (streamLength - position) + " bytes early");
+                }
+                position += transferred;
+                countDataReceived(transferred);
+            }
+            //Anything an earlier, longer version of the file left past the end
+            outputChannel.truncate(rangeOffset + streamLength);
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+    }
+
+    private void countDataSent(long bytes)
+    {
+        onProgress.run();
+        recordFirstByte();
+        ServerMetrics.SHARED.dataSent(bytes);
+        fileBytes += bytes;
+    }
+
+    private void countDataReceived(long bytes)
+    {
+        onProgress.run();
+        recordFirstByte();
+        ServerMetrics.SHARED.dataReceived(bytes);
+        fileBytes += bytes;
+    }
+
+    private void recordFirstByte()
+    {
+        if (!firstByteRecorded)
+        {
+            firstByteRecorded = true;
+            ServerMetrics.SHARED.firstByte(System.nanoTime() - requestReceivedAt);
+        }
+    }
 
-        System.out.println(getName() + " terminated!");
+    private static void putLength(byte[] buffer, int length)
+    {
+        buffer[4] = (byte)((length >> 24) & 0xFF);
+        buffer[5] = (byte)((length >> 16) & 0xFF);
+        buffer[6] = (byte)((length >> 8) & 0xFF);
+        buffer[7] = (byte)(length & 0xFF);
     }
 }
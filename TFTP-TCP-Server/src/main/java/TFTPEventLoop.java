@@ -0,0 +1,180 @@
+import java.io.IOException;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.ArrayList;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.Executor;
+
+//Looks after any number of connections on one thread while they are waiting for their next request
+//Each connection's channel is non-blocking and registered with our selector, and its request is read in as it arrives.
+//Once a whole request is in the channel is taken back out of the selector and the transfer is handed to a worker, which
+//gives the connection back to us (register) when it is done. Connections that go quiet for too long are closed
+//Thousands of connections can sit here between transfers without a thread each
+//Transfers run blocking on a worker with nothing to stop a read or write waiting forever, so we also watch the
+//connections our workers have and close any whose transfer hasn't moved data for a while. Otherwise as many stalled
+//clients as there are workers would be enough to stop the server taking anything else
+public class TFTPEventLoop extends Thread{
+
+    //How long a connection can sit without sending a request before we close it
+    private static final long IDLE_TIMEOUT_MILLIS = 60_000;
+    //How often we look for connections that have gone quiet, also the longest select waits
+    private static final long IDLE_CHECK_MILLIS = 1000;
+    //How long a transfer can go without moving any data before we close its connection
+    private static long stallTimeoutMillis = 30_000;
+
+    private final Selector selector;
+    //Where transfers run
+    private final Executor workers;
+    //Connections handed to us from other threads (the accept loop and the workers), we register them ourselves as
+    //register() blocks while we are inside select()
+    private final Queue<TFTPSession> pendingSessions = new ConcurrentLinkedQueue<>();
+    //Sessions with a whole request in, waiting for their cancelled keys to be cleared out before they go to a worker
+    private final List<TFTPSession> readySessions = new ArrayList<>();
+    //Sessions a worker is running a transfer on, added and removed by the workers
+    private final Set<TFTPSession> runningSessions = ConcurrentHashMap.newKeySet();
+
+    public TFTPEventLoop(String name, Executor workers) throws IOException
+    {
+        super(name);
+        this.workers = workers;
+        this.selector = Selector.open();
+    }
+
+    public static void setStallTimeout(int seconds)
+    {
+        stallTimeoutMillis = Math.max(1, seconds) * 1000L;
+    }
+
+    public static long getStallTimeoutSeconds()
+    {
+        return stallTimeoutMillis / 1000;
+    }
+
+    //Called from the worker running the session's transfers
+    public void transferStarted(TFTPSession session)
+    {
+        runningSessions.add(session);
+    }
+
+    public void transferFinished(TFTPSession session)
+    {
+        runningSessions.remove(session);
+    }
+
+    //Called from any thread
+    public void register(TFTPSession session)
+    {
+        pendingSessions.add(session);
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        long nextIdleCheck = System.currentTimeMillis() + IDLE_CHECK_MILLIS;
+
+        //Run forever (i.e. until terminal is closed)
+        while (true)
+        {
+            try
+            {
+                selector.select(IDLE_CHECK_MILLIS);
+                registerPendingSessions();
+                readRequests();
+
+                while (!readySessions.isEmpty())
+                {
+                    //A channel can only go back into blocking mode once its key is really gone, which happens on the
+                    //next select. selectNow does that without waiting, and may find more requests to read while it is at it
+                    selector.selectNow();
+                    for (TFTPSession session : readySessions)
+                    {
+                        workers.execute(session::runRequest);
+                    }
+                    readySessions.clear();
+                    readRequests();
+                }
+            }
+            catch (IOException e)
+            {
+                System.err.println(e);
+                return;
+            }
+
+            long now = System.currentTimeMillis();
+            if (now >= nextIdleCheck)
+            {
+                closeIdleSessions(now);
+                nextIdleCheck = now + IDLE_CHECK_MILLIS;
+            }
+        }
+    }
+
+    private void registerPendingSessions()
+    {
+        TFTPSession session;
+        long now = System.currentTimeMillis();
+        while ((session = pendingSessions.poll()) != null)
+        {
+            try
+            {
+                session.getChannel().configureBlocking(false);
+                session.getChannel().register(selector, SelectionKey.OP_READ, session);
+                session.markActive(now);
+            }
+            catch (IOException e)
+            {
+                System.err.println(e);
+                session.close();
+            }
+        }
+    }
+
+    private void readRequests()
+    {
+        Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+        while (selectedKeys.hasNext())
+        {
+            SelectionKey key = selectedKeys.next();
+            selectedKeys.remove();
+            if (!key.isValid() || !key.isReadable()) continue;
+
+            TFTPSession session = (TFTPSession)key.attachment();
+            try
+            {
+                session.markActive(System.currentTimeMillis());
+                if (session.readRequest())
+                {
+                    key.cancel();
+                    readySessions.add(session);
+                }
+            }
+            catch (IOException e)
+            {
+                //Closed by the client (or reset), either way there is nothing more coming
+                session.close();
+            }
+        }
+    }
+
+    private void closeIdleSessions(long now)
+    {
+        for (SelectionKey key : selector.keys())
+        {
+            TFTPSession session = (TFTPSession)key.attachment();
+            if (key.isValid() && now - session.getLastActive() > IDLE_TIMEOUT_MILLIS)
+            {
+                session.close();
+            }
+        }
+
+        for (TFTPSession session : runningSessions)
+        {
+            session.closeIfStalled(now, stallTimeoutMillis);
+        }
+    }
+}
@@ -1,24 +1,76 @@
 import java.net.*;
 import java.io.*;
+import java.nio.channels.ServerSocketChannel;
+import java.nio.channels.SocketChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 public class TFTPServer extends Thread {
 
+    //How long the accept loop backs off after accept fails (most likely out of file descriptors)
+    private static final long ACCEPT_RETRY_MILLIS = 100;
+
     protected ServerSocket communicationSocket;
+    private final ServerSocketChannel communicationChannel;
     private final int serverPort = 20001;
+    //Send files for READ requests straight from the page cache (see ZeroCopyFileSender)
+    private final boolean zeroCopy;
+    //Connections are handed out to these in turn, they look after them between transfers (see TFTPEventLoop)
+    private final TFTPEventLoop[] eventLoops;
+    private int nextEventLoop;
+    //Every transfer runs on one of these, either a fixed number of platform threads or a virtual thread each
+    private final ExecutorService workers;
+    //One permit per connection we are willing to have open. Once they are all taken we stop accepting, and anyone
+    //else waits in the kernel's listen backlog until a connection closes
+    private final Semaphore connectionPermits;
 
     public TFTPServer() throws IOException
     {
-        this("TFTP-TCP-Server");
+        this("TFTP-TCP-Server", false, false);
+    }
+
+    public TFTPServer(String name, boolean useVirtualThreads, boolean zeroCopy) throws IOException
+    {
+        this(name, useVirtualThreads, zeroCopy, 1, 64, 1024);
     }
 
-    public TFTPServer(String name) throws IOException
+    public TFTPServer(String name, boolean useVirtualThreads, boolean zeroCopy, int ioThreadCount, int workerCount, int maxConnections) throws IOException
     {
         super(name);
+        this.zeroCopy = zeroCopy;
+        this.connectionPermits = new Semaphore(maxConnections);
+
+        //Daemon threads, the accept loop is what keeps the server running
+        if (useVirtualThreads)
+        {
+            //Virtual threads are cheap enough to have one per transfer, max connections is the bound
+            workers = Executors.newThreadPerTaskExecutor(Thread.ofVirtual().name("VirtualThread-", 0).factory());
+        }
+        else
+        {
+            workers = Executors.newFixedThreadPool(workerCount, Thread.ofPlatform().name(name + "-Worker-", 0).daemon(true).factory());
+        }
+
+        eventLoops = new TFTPEventLoop[ioThreadCount];
+        for (int i = 0; i < ioThreadCount; i++)
+        {
+            eventLoops[i] = new TFTPEventLoop(name + "-EventLoop-" + i, workers);
+            eventLoops[i].setDaemon(true);
+            eventLoops[i].start();
+        }
 
         //Instantiate our main/master socket
-        communicationSocket = new ServerSocket(serverPort);
+        //We open it through a channel so every accepted socket has a SocketChannel behind it, the event loops need that
+        communicationChannel = ServerSocketChannel.open();
+        communicationChannel.bind(new InetSocketAddress(serverPort));
+        communicationSocket = communicationChannel.socket();
+
+        ServerMetrics.SHARED.registerMBean("TCPServer");
 
         Runtime.getRuntime().addShutdownHook(new Thread(()->{
             //Ensure socket is closed when terminal is closed
@@ -36,45 +88,144 @@ public class TFTPServer extends Thread {
         //Run forever or until terminal is closed
         while (true)
         {
-            //Wait until we get a blocking call from the client
             try {
-                Socket clientSocket = communicationSocket.accept();
-
-                //Once we do we want to create a new thread to handle our connection with this client
-                DataInputStream clientRequestInput = new DataInputStream(clientSocket.getInputStream());
-
-                byte[] requestData = new byte[256];
-                clientRequestInput.read(requestData);
-
-                int opcode = requestData[1];
+                //Waits here while we are at max connections
+                connectionPermits.acquire();
+            } catch (InterruptedException e) {
+                return;
+            }
 
-                //We just assume the whole rest of the array is the file name, we can do this as we don't care about mode
-                //if we want this implementation to work with other TFTP implementations then we would need to only take the
-                //part of the array up to the next "buffer" byte
-                //This file is either the file being read or the file being written too
-                //i.e. it is the file the server "controls"
-                String targetFilename = new String(Arrays.copyOfRange(requestData, 2, requestData.length), StandardCharsets.UTF_8).trim();
+            //Wait until we get a blocking call from the client
+            SocketChannel clientChannel = null;
+            try {
+                clientChannel = communicationChannel.accept();
+                //Replies are small and come one after another on the same connection, Nagle would hold them back waiting
+                //for ACKs that the client is delaying
+                clientChannel.setOption(StandardSocketOptions.TCP_NODELAY, true);
+            } catch (IOException e) {
+                connectionPermits.release();
+                //Closed by the shutdown hook, nothing has gone wrong
+                if (!communicationChannel.isOpen()) return;
 
-                if(opcode == 1)
+                //Anything else is no reason to stop taking connections, but trying again straight away won't help
+                ServerMetrics.SHARED.acceptFailed();
+                System.err.println(e);
+                if (clientChannel != null)
                 {
-                    //read
-                    new TFTPConnection(TFTPConnection.ConnectionType.READ, clientSocket, targetFilename).start();
+                    try {
+                        clientChannel.close();
+                    } catch (IOException ignored) { }
                 }
-                else if(opcode == 2)
-                {
-                    //write
-                    new TFTPConnection(TFTPConnection.ConnectionType.WRITE, clientSocket, targetFilename).start();
+                try {
+                    Thread.sleep(ACCEPT_RETRY_MILLIS);
+                } catch (InterruptedException interrupted) {
+                    return;
                 }
-
-            } catch (IOException e) {
-                throw new RuntimeException(e);
+                continue;
             }
+
+            //The event loop reads the request, so a client that is slow to send one can't hold up the next accept
+            ServerMetrics.SHARED.connectionOpened();
+            TFTPEventLoop eventLoop = eventLoops[nextEventLoop];
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
+            eventLoop.register(new TFTPSession(clientChannel, eventLoop, zeroCopy, this::connectionClosed));
         }
     }
 
+    private void connectionClosed()
+    {
+        ServerMetrics.SHARED.connectionClosed();
+        connectionPermits.release();
+    }
+
     public static void main(String[] args) throws IOException {
         //Start main server thread
-        new TFTPServer().start();
+        //"--virtual-threads" runs each transfer on a virtual thread instead of a fixed pool of platform threads
+        //"--io-threads N" looks after connections between transfers on N selector threads (default 1)
+        //"--workers N" runs transfers on N platform threads (default 64), more wait their turn
+        //"--max-connections N" stops accepting while N connections are open (default 1024)
+        //"--stall-timeout SECONDS" closes a connection whose transfer hasn't moved any data for that long (default 30)
+        //"--zero-copy" sends files without copying them through the Java heap
+        //"--metrics-port PORT" serves ServerMetrics as Prometheus text on http://127.0.0.1:PORT/metrics
+        //"--transfer-log FILE" writes the line for each finished transfer (see TransferLog) to FILE instead of the console
+        boolean useVirtualThreads = false;
+        boolean zeroCopy = false;
+        int metricsPort = 0;
+        int ioThreadCount = 1;
+        int workerCount = 64;
+        int maxConnections = 1024;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--virtual-threads"))
+            {
+                useVirtualThreads = true;
+            }
+            else if (args[i].equals("--zero-copy"))
+            {
+                zeroCopy = true;
+            }
+            else if (args[i].equals("--io-threads") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                ioThreadCount = Math.max(1, Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("--workers") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                workerCount = Math.max(1, Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("--max-connections") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                maxConnections = Math.max(1, Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("--stall-timeout") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                TFTPEventLoop.setStallTimeout(Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("--metrics-port") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                metricsPort = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("--transfer-log") && i + 1 < args.length)
+            {
+                TransferLog.SHARED.setFile(Path.of(args[++i]));
+            }
+        }
+
+        new TFTPServer("TFTP-TCP-Server", useVirtualThreads, zeroCopy, ioThreadCount, workerCount, maxConnections).start();
         System.out.println("Server started!");
+
+        if (metricsPort > 0)
+        {
+            ServerMetrics.SHARED.startHttpEndpoint(metricsPort);
+            System.out.println("Metrics on http://127.0.0.1:" + metricsPort + "/metrics");
+        }
+    }
+
+    static List<String> splitRequestFields(byte[] requestData)
+    {
+        //Skip the opcode, then cut the request up at each zero byte
+        //Older clients just pad the filename with zeros, so we stop at the first empty field
+        List<String> fields = new ArrayList<>();
+        int fieldStart = 2;
+        for (int i = 2; i < requestData.length; i++)
+        {
+            if (requestData[i] == 0)
+            {
+                if (i == fieldStart)
+                {
+                    return fields;
+                }
+
+                fields.add(new String(requestData, fieldStart, i - fieldStart, StandardCharsets.UTF_8));
+                fieldStart = i + 1;
+            }
+        }
+
+        if (fieldStart < requestData.length)
+        {
+            //Unterminated final field
+            fields.add(new String(requestData, fieldStart, requestData.length - fieldStart, StandardCharsets.UTF_8));
+        }
+
+        return fields;
     }
 }
@@ -0,0 +1,194 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.SocketChannel;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+
+//Everything that happens on one client connection
+//Normally that is one request and its transfer, then the connection is closed. Clients can ask to keep it open instead
+//(the "session" option set to 1, on a request that also asks for blksize or stream) and once we have agreed in the OACK
+//they can send request after request down the same connection, so a burst of small files only costs one handshake and
+//one slow start. Requests are taken one at a time, but the client doesn't have to wait for a transfer to finish before
+//sending the next one, anything that arrives early just waits in the socket until the current transfer is done
+//An error packet leaves the session open, anything that leaves the connection in an unknown state (a transfer cut off
+//part way through) closes it
+//While it is waiting for a request the connection belongs to a TFTPEventLoop, so an idle session doesn't hold a thread.
+//Once a whole request is in, the transfer runs on one of the server's workers with the channel in blocking mode, then
+//the connection goes back to its event loop for the next request. The event loop still keeps an eye on it while it is
+//away, and closes it if the transfer stops moving data (a client that stopped reading or writing would otherwise hold
+//the worker forever)
+public class TFTPSession {
+
+    private final SocketChannel clientChannel;
+    private final TFTPEventLoop eventLoop;
+    private final boolean zeroCopy;
+    //Lets the server know it can take another connection
+    private final Runnable onClosed;
+
+    //The next request, filled in over as many reads as it takes to arrive
+    private final ByteBuffer requestData = ByteBuffer.allocate(256);
+    //When we last heard from the client, or during a transfer when data last moved either way
+    //For closing connections that have gone quiet, set by the worker and read by the event loop
+    private volatile long lastActive;
+    //The transfer a worker is running, if any
+    private volatile TFTPConnection currentConnection;
+    private boolean closed;
+
+    public TFTPSession(SocketChannel clientChannel, TFTPEventLoop eventLoop, boolean zeroCopy, Runnable onClosed)
+    {
+        this.clientChannel = clientChannel;
+        this.eventLoop = eventLoop;
+        this.zeroCopy = zeroCopy;
+        this.onClosed = onClosed;
+    }
+
+    public SocketChannel getChannel()
+    {
+        return clientChannel;
+    }
+
+    public long getLastActive()
+    {
+        return lastActive;
+    }
+
+    public void markActive(long now)
+    {
+        lastActive = now;
+    }
+
+    //Called on the event loop whenever the channel is readable, returns true once the whole request is in
+    //Never reads past the end of the request, anything after it is the client getting ahead of us and stays in the socket
+    public boolean readRequest() throws IOException
+    {
+        if (clientChannel.read(requestData) < 0)
+        {
+            //Client is done with us
+            throw new EOFException();
+        }
+        return !requestData.hasRemaining();
+    }
+
+    //Runs on a worker once the event loop has let go of the channel
+    public void runRequest()
+    {
+        boolean keepOpen = false;
+        boolean backToEventLoop = false;
+        eventLoop.transferStarted(this);
+        try {
+            while (true)
+            {
+                clientChannel.configureBlocking(true);
+
+                //Time spent waiting for a worker doesn't count against the client
+                markActive(System.currentTimeMillis());
+                TFTPConnection connection = createConnection(requestData.array());
+                requestData.clear();
+                if (connection == null)
+                {
+                    ServerMetrics.SHARED.requestRejected();
+                    return;
+                }
+
+                currentConnection = connection;
+                connection.run();
+                currentConnection = null;
+                keepOpen = connection.canTakeAnotherRequest();
+                if (!keepOpen) return;
+
+                //A client that is pipelining has usually sent its next request already, if so carry straight on with it
+                //rather than handing the connection back to the event loop only to be handed it again
+                clientChannel.configureBlocking(false);
+                if (!readRequest())
+                {
+                    backToEventLoop = true;
+                    return;
+                }
+            }
+        } catch (IOException e) {
+            //Including the client closing the connection while we looked for its next request
+            keepOpen = false;
+            if (!(e instanceof EOFException)) System.err.println(e);
+        } catch (RuntimeException e) {
+            //The transfer failed part way through, that is already in the TransferLog
+            keepOpen = false;
+        } finally {
+            currentConnection = null;
+            eventLoop.transferFinished(this);
+            if (keepOpen && backToEventLoop)
+            {
+                eventLoop.register(this);
+            }
+            else
+            {
+                close();
+            }
+        }
+    }
+
+    //Called on the event loop while a worker has the connection, closing the channel gets the worker out of whatever
+    //read or write it is stuck in
+    public void closeIfStalled(long now, long stallTimeoutMillis)
+    {
+        TFTPConnection connection = currentConnection;
+        if (connection == null || now - lastActive <= stallTimeoutMillis) return;
+
+        connection.markStalled();
+        try {
+            //Closing isn't enough on its own for a worker in the middle of a transferTo (sendfile), it doesn't notice
+            //the channel closing. Shutting the socket down does get it out
+            clientChannel.shutdownInput();
+            clientChannel.shutdownOutput();
+        } catch (IOException ignored) { }
+        close();
+    }
+
+    //Called from the worker and (for stalled transfers) the event loop
+    public synchronized void close()
+    {
+        if (closed) return;
+        closed = true;
+        try {
+            clientChannel.close();
+        } catch (IOException ignored) { }
+        onClosed.run();
+    }
+
+    private TFTPConnection createConnection(byte[] requestData) throws IOException
+    {
+        int opcode = requestData[1];
+        ServerMetrics.SHARED.requestReceived();
+
+        //The request is the file name, then mode and any options as zero terminated strings (RFC 2347)
+        //We don't care about mode. Older clients only send the file name, padded out with zeros
+        //This file is either the file being read or the file being written too
+        //i.e. it is the file the server "controls"
+        List<String> requestFields = TFTPServer.splitRequestFields(requestData);
+        String targetFilename = requestFields.isEmpty() ? "" : requestFields.get(0).trim();
+        Map<String, String> requestOptions = new LinkedHashMap<>();
+        for (int i = 2; i + 1 < requestFields.size(); i += 2)
+        {
+            //Option names are case-insensitive
+            requestOptions.put(requestFields.get(i).toLowerCase(), requestFields.get(i + 1));
+        }
+
+        if (opcode == 1)
+        {
+            //read
+            return new TFTPConnection(TFTPConnection.ConnectionType.READ, clientChannel.socket(), targetFilename, requestOptions, zeroCopy, this::onProgress);
+        }
+        else if (opcode == 2)
+        {
+            //write
+            return new TFTPConnection(TFTPConnection.ConnectionType.WRITE, clientChannel.socket(), targetFilename, requestOptions, zeroCopy, this::onProgress);
+        }
+        return null;
+    }
+
+    private void onProgress()
+    {
+        markActive(System.currentTimeMillis());
+    }
+}
@@ -0,0 +1,313 @@
+import java.io.BufferedWriter;
+import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.InetAddress;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.time.Instant;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.locks.LockSupport;
+
+//One line of JSON for every finished transfer (who, what, which way, how much, how long and how it ended)
+//Connections only ever put an entry in a ring buffer, which never blocks or takes a lock. A single background thread
+//takes them out in batches, formats them and writes them out, so a slow terminal or disk can't hold up a transfer
+//Goes to the console unless the server is started with --transfer-log, then to that file, which is rotated once it
+//gets big (file.1 is the newest old one, file.5 the oldest)
+//If the writer can't keep up the ring fills and new entries are dropped (and counted) rather than waited on
+public class TransferLog {
+
+    public static final TransferLog SHARED = new TransferLog(8192);
+
+    private static final long MAX_FILE_SIZE = 16L * 1024 * 1024;
+    private static final int KEPT_FILES = 5;
+    //Most entries written between flushes
+    private static final int BATCH_SIZE = 256;
+    //How long the writer sleeps when the ring is empty, entries wait at most this long to be written
+    private static final long IDLE_NANOS = 50_000_000;
+
+    public static final class Entry{
+        final long finishedAt;
+        final TFTPConnection.ConnectionType type;
+        final InetAddress clientAddress;
+        final int clientPort;
+        final String filename;
+        final long bytes;
+        final long durationNanos;
+        final String outcome;
+        final int blockSize;
+        //legacy, framed, stream or zero-copy
+        final String mode;
+
+        public Entry(TFTPConnection.ConnectionType type, InetAddress clientAddress, int clientPort, String filename,
+                     long bytes, long durationNanos, String outcome, int blockSize, String mode)
+        {
+            this.finishedAt = System.currentTimeMillis();
+            this.type = type;
+            this.clientAddress = clientAddress;
+            this.clientPort = clientPort;
+            this.filename = filename;
+            this.bytes = bytes;
+            this.durationNanos = durationNanos;
+            this.outcome = outcome;
+            this.blockSize = blockSize;
+            this.mode = mode;
+        }
+    }
+
+    //Bounded multi-producer single-consumer ring (Vyukov's queue)
+    //Each slot has a sequence number saying whose turn it is: equal to the claimed position when free for a producer,
+    //one past it once filled for the writer. Producers claim a position with a single compare and set on tail
+    private final Entry[] entries;
+    private final AtomicLongArray sequences;
+    private final int mask;
+    private final AtomicLong tail = new AtomicLong();
+    //Only the writer thread touches head
+    private long head;
+    private final AtomicLong dropped = new AtomicLong();
+
+    private volatile Path logFile;
+    private volatile boolean stopping;
+    private final Thread writerThread;
+
+    //Writer thread state
+    private Writer out;
+    private long fileSize;
+    private final StringBuilder line = new StringBuilder(256);
+
+    private TransferLog(int capacity)
+    {
+        //Rounded up to a power of two so a position maps to a slot with a mask
+        int slots = Integer.highestOneBit(Math.max(2, capacity - 1)) << 1;
+        entries = new Entry[slots];
+        sequences = new AtomicLongArray(slots);
+        for (int i = 0; i < slots; i++)
+        {
+            sequences.set(i, i);
+        }
+        mask = slots - 1;
+
+        writerThread = new Thread(this::drain, "TransferLog-Writer");
+        writerThread.setDaemon(true);
+        writerThread.start();
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            //Let the writer empty the ring before we go
+            stopping = true;
+            LockSupport.unpark(writerThread);
+            try {
+                writerThread.join(1000);
+            } catch (InterruptedException ignored) { }
+        }));
+    }
+
+    //Only takes effect for entries written after it is called, so call it before the server starts
+    public void setFile(Path file)
+    {
+        logFile = file;
+    }
+
+    public long getDropped()
+    {
+        return dropped.get();
+    }
+
+    //Never blocks, if the ring is full the entry is dropped
+    public void log(Entry entry)
+    {
+        while (true)
+        {
+            long position = tail.get();
+            int slot = (int)(position & mask);
+            long sequence = sequences.get(slot);
+
+            if (sequence == position)
+            {
+                if (tail.compareAndSet(position, position + 1))
+                {
+                    entries[slot] = entry;
+                    //Publishes the entry to the writer
+                    sequences.set(slot, position + 1);
+                    return;
+                }
+            }
+            else if (sequence < position)
+            {
+                //The writer hasn't got to this slot since it was last filled, we are a whole ring ahead
+                dropped.incrementAndGet();
+                return;
+            }
+            //Otherwise another producer claimed the position first, try the next one
+        }
+    }
+
+    private Entry poll()
+    {
+        int slot = (int)(head & mask);
+        if (sequences.get(slot) != head + 1) return null;
+
+        Entry entry = entries[slot];
+        entries[slot] = null;
+        //Free for the producer that comes round to this slot next time
+        sequences.set(slot, head + entries.length);
+        head++;
+        return entry;
+    }
+
+    private void drain()
+    {
+        long droppedReported = 0;
+        while (true)
+        {
+            boolean stop = stopping;
+            int written = 0;
+            try
+            {
+                Entry entry;
+                while (written < BATCH_SIZE && (entry = poll()) != null)
+                {
+                    write(entry);
+                    written++;
+                }
+
+                long droppedNow = dropped.get();
+                if (droppedNow != droppedReported)
+                {
+                    writeLine("{\"time\":\"" + Instant.now() + "\",\"dropped\":" + (droppedNow - droppedReported) + "}");
+                    droppedReported = droppedNow;
+                    written++;
+                }
+
+                if (written > 0)
+                {
+                    out.flush();
+                }
+            }
+            catch (IOException e)
+            {
+                //Keep going, the next batch may go to a fresh file
+                System.err.println(e);
+                closeOutput();
+            }
+
+            if (written == 0)
+            {
+                //Checked before the ring was emptied, so anything logged before stopping was set has been written
+                if (stop) return;
+                LockSupport.parkNanos(IDLE_NANOS);
+            }
+        }
+    }
+
+    private void write(Entry entry) throws IOException
+    {
+        line.setLength(0);
+        line.append("{\"time\":\"").append(Instant.ofEpochMilli(entry.finishedAt)).append('"');
+        line.append(",\"client\":\"").append(entry.clientAddress.getHostAddress()).append(':').append(entry.clientPort).append('"');
+        line.append(",\"file\":");
+        appendJsonString(line, entry.filename);
+        line.append(",\"direction\":\"").append(entry.type.name().toLowerCase(Locale.ROOT)).append('"');
+        line.append(",\"bytes\":").append(entry.bytes);
+        line.append(",\"duration_ms\":").append(String.format(Locale.ROOT, "%.3f", entry.durationNanos / 1e6));
+        line.append(",\"outcome\":");
+        appendJsonString(line, entry.outcome);
+        line.append(",\"blksize\":").append(entry.blockSize);
+        line.append(",\"mode\":\"").append(entry.mode).append('"');
+        line.append('}');
+        writeLine(line);
+    }
+
+    private void writeLine(CharSequence text) throws IOException
+    {
+        if (out == null)
+        {
+            openOutput();
+        }
+        else if (logFile != null && fileSize >= MAX_FILE_SIZE)
+        {
+            closeOutput();
+            rotate();
+            openOutput();
+        }
+
+        out.append(text).append('\n');
+        //Near enough, the log is ASCII apart from the odd file name
+        fileSize += text.length() + 1;
+    }
+
+    private void openOutput() throws IOException
+    {
+        Path file = logFile;
+        if (file == null)
+        {
+            //Never closed, it is the console
+            out = new BufferedWriter(new OutputStreamWriter(System.out, StandardCharsets.UTF_8));
+            fileSize = 0;
+        }
+        else
+        {
+            out = Files.newBufferedWriter(file, StandardCharsets.UTF_8, StandardOpenOption.CREATE, StandardOpenOption.APPEND);
+            fileSize = Files.size(file);
+        }
+    }
+
+    private void closeOutput()
+    {
+        if (out == null) return;
+        try {
+            if (logFile != null)
+            {
+                out.close();
+            }
+            else
+            {
+                out.flush();
+            }
+        } catch (IOException e) {
+            System.err.println(e);
+        }
+        out = null;
+    }
+
+    private void rotate() throws IOException
+    {
+        Path file = logFile;
+        Files.deleteIfExists(Path.of(file + "." + KEPT_FILES));
+        for (int i = KEPT_FILES - 1; i >= 1; i--)
+        {
+            Path older = Path.of(file + "." + i);
+            if (Files.exists(older))
+            {
+                Files.move(older, Path.of(file + "." + (i + 1)), StandardCopyOption.REPLACE_EXISTING);
+            }
+        }
+        Files.move(file, Path.of(file + ".1"), StandardCopyOption.REPLACE_EXISTING);
+    }
+
+    private static void appendJsonString(StringBuilder out, String value)
+    {
+        out.append('"');
+        for (int i = 0; i < value.length(); i++)
+        {
+            char c = value.charAt(i);
+            if (c == '"' || c == '\\')
+            {
+                out.append('\\').append(c);
+            }
+            else if (c < 0x20)
+            {
+                out.append(String.format("\\u%04x", (int)c));
+            }
+            else
+            {
+                out.append(c);
+            }
+        }
+        out.append('"');
+    }
+}
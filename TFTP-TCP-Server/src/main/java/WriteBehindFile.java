@@ -0,0 +1,210 @@
+import java.io.IOException;
+import java.io.InterruptedIOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//The file a WRITE connection is receiving, written behind the network
+//Blocks are copied into a big chunk and each full chunk is handed to a disk writer thread, so the connection can get
+//on with reading the next blocks off the socket while the disk catches up. Each file only has a few chunks, once they
+//are all queued up for the disk write waits for one to come back, and TCP's flow control slows the client down
+//The file is only synced to disk once, when the transfer has finished
+public class WriteBehindFile {
+
+    private static final int CHUNK_SIZE = 256 * 1024;
+    private static final int MAX_CHUNKS = 4;
+
+    //Shared by every connection, each file always goes to the same one so its chunks are written in order
+    private static final ExecutorService[] DISK_WRITERS = new ExecutorService[2];
+    private static final AtomicInteger nextDiskWriter = new AtomicInteger();
+
+    static
+    {
+        for (int i = 0; i < DISK_WRITERS.length; i++)
+        {
+            String name = "DiskWriter-" + i;
+            DISK_WRITERS[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            //Let anything already queued reach the file before we go
+            for (ExecutorService diskWriter : DISK_WRITERS)
+            {
+                diskWriter.shutdown();
+            }
+            try {
+                for (ExecutorService diskWriter : DISK_WRITERS)
+                {
+                    diskWriter.awaitTermination(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException ignored) { }
+        }));
+    }
+
+    private final FileChannel fileChannel;
+    private final ExecutorService diskWriter;
+
+    //Chunks that are free to be filled, the disk writer puts each one back here once it has been written
+    private final ArrayBlockingQueue<ByteBuffer> freeChunks = new ArrayBlockingQueue<>(MAX_CHUNKS);
+    private int allocatedChunks;
+    //Being filled by the connection, null until the next block arrives
+    private ByteBuffer chunk;
+    //Where in the file the current chunk goes
+    private long chunkPosition;
+    //The first write to fail, everything after it is skipped
+    private volatile IOException failure;
+    private boolean closed;
+
+    public WriteBehindFile(FileChannel fileChannel)
+    {
+        this.fileChannel = fileChannel;
+        this.diskWriter = DISK_WRITERS[Math.floorMod(nextDiskWriter.getAndIncrement(), DISK_WRITERS.length)];
+    }
+
+    //Only waits if the disk is too far behind, throws the error from an earlier write that failed
+    public void write(byte[] data, int offset, int length) throws IOException
+    {
+        while (length > 0)
+        {
+            if (failure != null) throw failure;
+
+            if (chunk == null)
+            {
+                chunk = takeChunk();
+            }
+
+            int copied = Math.min(length, chunk.remaining());
+            chunk.put(data, offset, copied);
+            offset += copied;
+            length -= copied;
+
+            if (!chunk.hasRemaining())
+            {
+                submitChunk();
+            }
+        }
+    }
+
+    //Writes out whatever is left, syncs the file (if sync is set) and closes it
+    //Waits for all of that, then throws the first error the file had
+    public void close(boolean sync) throws IOException
+    {
+        if (closed) return;
+        closed = true;
+
+        if (chunk != null && chunk.position() > 0)
+        {
+            submitChunk();
+        }
+
+        Future<?> closing;
+        try
+        {
+            closing = diskWriter.submit(() -> closeChannel(sync));
+        }
+        catch (RejectedExecutionException e)
+        {
+            //Shutting down, the disk writers have stopped taking work so do it here
+            closeChannel(sync);
+            closing = null;
+        }
+
+        if (closing != null)
+        {
+            try {
+                closing.get();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted while closing " + fileChannel);
+            } catch (ExecutionException e) {
+                throw new IOException(e.getCause());
+            }
+        }
+
+        if (failure != null) throw failure;
+    }
+
+    private ByteBuffer takeChunk() throws IOException
+    {
+        ByteBuffer free = freeChunks.poll();
+        if (free == null)
+        {
+            if (allocatedChunks < MAX_CHUNKS)
+            {
+                allocatedChunks++;
+                return ByteBuffer.allocate(CHUNK_SIZE);
+            }
+
+            try {
+                free = freeChunks.take();
+            } catch (InterruptedException e) {
+                Thread.currentThread().interrupt();
+                throw new InterruptedIOException("Interrupted waiting for the disk");
+            }
+        }
+        free.clear();
+        return free;
+    }
+
+    private void submitChunk()
+    {
+        ByteBuffer chunkToWrite = chunk;
+        long position = chunkPosition;
+        chunkPosition += chunkToWrite.position();
+        chunk = null;
+
+        chunkToWrite.flip();
+        Runnable work = () -> {
+            try {
+                //Positioned writes, so the file's own position never matters
+                long writePosition = position;
+                while (failure == null && chunkToWrite.hasRemaining())
+                {
+                    writePosition += fileChannel.write(chunkToWrite, writePosition);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                freeChunks.offer(chunkToWrite);
+            }
+        };
+
+        try
+        {
+            diskWriter.execute(work);
+        }
+        catch (RejectedExecutionException e)
+        {
+            work.run();
+        }
+    }
+
+    private void closeChannel(boolean sync)
+    {
+        try {
+            if (sync && failure == null)
+            {
+                //Metadata too, the file has most likely grown
+                fileChannel.force(true);
+            }
+        } catch (IOException e) {
+            failure = e;
+        }
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            if (failure == null) failure = e;
+        }
+    }
+}
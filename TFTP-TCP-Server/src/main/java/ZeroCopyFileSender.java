@@ -0,0 +1,192 @@
+import java.io.EOFException;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.channels.SocketChannel;
+
+//Sends a file down a SocketChannel as DATA blocks without copying the file data through the Java heap
+//Big blocks are sent as a 4 byte header from user space followed by FileChannel.transferTo (sendfile) for the data
+//In framed mode the header also carries the block's length and the final block isn't padded
+//Small blocks would make that two system calls per block, so instead the file is memory mapped and a batch of
+//headers and mapped slices goes out in a single gathering write
+public class ZeroCopyFileSender {
+
+    //Blocks at least this big are sent with transferTo
+    private static final int TRANSFER_TO_THRESHOLD = 8192;
+    //Blocks (header and data buffer pairs) handed to each gathering write
+    private static final int BLOCKS_PER_WRITE = 64;
+    //How much of the file is mapped at once, a single mapping can't go past 2GB
+    private static final long MAP_REGION_SIZE = 64L * 1024 * 1024;
+
+    private final SocketChannel socketChannel;
+    private final FileChannel fileChannel;
+    private final int blockSize;
+    //The original TCP framing always sends blockSize + 4 bytes, so unless we are framed the final block has to be made up with zeros
+    private final boolean framed;
+    private final int headerLength;
+    private final ByteBuffer padding;
+    //Called whenever some of the file has gone, so the transfer isn't taken for stalled (see TFTPEventLoop)
+    private final Runnable onProgress;
+
+    public ZeroCopyFileSender(SocketChannel socketChannel, FileChannel fileChannel, int blockSize, boolean framed, Runnable onProgress)
+    {
+        this.socketChannel = socketChannel;
+        this.onProgress = onProgress;
+        this.fileChannel = fileChannel;
+        this.blockSize = blockSize;
+        this.framed = framed;
+        this.headerLength = framed ? 8 : 4;
+        this.padding = framed ? null : ByteBuffer.allocateDirect(blockSize);
+    }
+
+    //Sends every block of the file, the last one is always shorter than blockSize (possibly empty)
+    public void sendBlocks() throws IOException
+    {
+        long fileSize = fileChannel.size();
+        if (blockSize >= TRANSFER_TO_THRESHOLD)
+        {
+            sendBlocksWithTransferTo(fileSize);
+        }
+        else
+        {
+            sendBlocksFromMapping(fileSize);
+        }
+    }
+
+    private void sendBlocksWithTransferTo(long fileSize) throws IOException
+    {
+        ByteBuffer header = ByteBuffer.allocateDirect(headerLength);
+        long position = 0;
+        int blockNumber = 0;
+        boolean lastDataSent = false;
+
+        while (!lastDataSent)
+        {
+            blockNumber++;
+            int dataLength = (int)Math.min(blockSize, fileSize - position);
+
+            header.clear();
+            putHeader(header, blockNumber, dataLength);
+            header.flip();
+            writeFully(header);
+
+            transferFully(position, dataLength);
+            position += dataLength;
+            onProgress.run();
+
+            if (dataLength < blockSize)
+            {
+                lastDataSent = true;
+                writePadding(blockSize - dataLength);
+            }
+        }
+    }
+
+    private void sendBlocksFromMapping(long fileSize) throws IOException
+    {
+        //Regions are a whole number of blocks long so no block is ever split across two mappings
+        long regionSize = (MAP_REGION_SIZE / blockSize) * blockSize;
+        ByteBuffer[] headers = new ByteBuffer[BLOCKS_PER_WRITE];
+        for (int i = 0; i < BLOCKS_PER_WRITE; i++)
+        {
+            headers[i] = ByteBuffer.allocateDirect(headerLength);
+        }
+        //Header, data and (for the final block only) padding
+        ByteBuffer[] gatheredBuffers = new ByteBuffer[BLOCKS_PER_WRITE * 2 + 1];
+
+        MappedByteBuffer mappedRegion = null;
+        long mappedRegionStart = 0;
+        long position = 0;
+        int blockNumber = 0;
+        boolean lastDataSent = false;
+
+        while (!lastDataSent)
+        {
+            int gatheredCount = 0;
+            for (int i = 0; i < BLOCKS_PER_WRITE && !lastDataSent; i++)
+            {
+                blockNumber++;
+                int dataLength = (int)Math.min(blockSize, fileSize - position);
+
+                ByteBuffer header = headers[i];
+                header.clear();
+                putHeader(header, blockNumber, dataLength);
+                header.flip();
+                gatheredBuffers[gatheredCount++] = header;
+
+                if (dataLength > 0)
+                {
+                    if (mappedRegion == null || position >= mappedRegionStart + mappedRegion.capacity())
+                    {
+                        mappedRegionStart = position;
+                        mappedRegion = fileChannel.map(FileChannel.MapMode.READ_ONLY, mappedRegionStart, Math.min(regionSize, fileSize - mappedRegionStart));
+                    }
+                    gatheredBuffers[gatheredCount++] = mappedRegion.slice((int)(position - mappedRegionStart), dataLength);
+                }
+                position += dataLength;
+
+                if (dataLength < blockSize)
+                {
+                    lastDataSent = true;
+                    if (!framed)
+                    {
+                        padding.clear().limit(blockSize - dataLength);
+                        gatheredBuffers[gatheredCount++] = padding;
+                    }
+                }
+            }
+
+            //A gathering write can stop part way through, so keep going until the last buffer is empty
+            ByteBuffer lastBuffer = gatheredBuffers[gatheredCount - 1];
+            while (lastBuffer.hasRemaining())
+            {
+                socketChannel.write(gatheredBuffers, 0, gatheredCount);
+            }
+            onProgress.run();
+        }
+    }
+
+    private void putHeader(ByteBuffer header, int blockNumber, int dataLength)
+    {
+        //OPCODE then the block number split across two bytes
+        header.put((byte)0);
+        header.put((byte)3);
+        header.put((byte)((blockNumber >> 8) & 0xFF));
+        header.put((byte)(blockNumber & 0xFF));
+        if (framed)
+        {
+            header.putInt(dataLength);
+        }
+    }
+
+    private void transferFully(long position, long count) throws IOException
+    {
+        while (count > 0)
+        {
+            long transferred = fileChannel.transferTo(position, count, socketChannel);
+            if (transferred <= 0 && position >= fileChannel.size())
+            {
+                //File has been cut short while we were sending it
+                throw new EOFException("File shrank during transfer");
+            }
+            position += transferred;
+            count -= transferred;
+        }
+    }
+
+    private void writePadding(int length) throws IOException
+    {
+        if (framed || length == 0) return;
+        padding.clear().limit(length);
+        writeFully(padding);
+    }
+
+    private void writeFully(ByteBuffer buffer) throws IOException
+    {
+        while (buffer.hasRemaining())
+        {
+            socketChannel.write(buffer);
+        }
+    }
+}
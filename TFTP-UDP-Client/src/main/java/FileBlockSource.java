@@ -0,0 +1,102 @@
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.file.StandardOpenOption;
+
+//Hands out the contents of a file a whole block at a time, instead of one FileInputStream.read() call per byte
+//Small files are read with a single FileChannel read per block, big files are memory mapped a region at a time
+//so filling a block is just a copy out of the page cache
+//Not thread safe, each transfer has its own
+public class FileBlockSource implements Closeable {
+
+    //Files at least this big are mapped rather than read
+    private static final long MAP_THRESHOLD = 4L * 1024 * 1024;
+    //How much of the file is mapped at once, a single mapping can't go past 2GB
+    private static final long MAP_REGION_SIZE = 64L * 1024 * 1024;
+
+    private final FileChannel fileChannel;
+    private final long fileSize;
+    //Where the next fill() carries on from
+    private long position;
+
+    private MappedByteBuffer mappedRegion;
+    private long mappedRegionStart;
+
+    public FileBlockSource(File file) throws IOException
+    {
+        fileChannel = FileChannel.open(file.toPath(), StandardOpenOption.READ);
+        fileSize = fileChannel.size();
+    }
+
+    public long size()
+    {
+        return fileSize;
+    }
+
+    //Copies the next length bytes of the file into the buffer
+    //Returns how many bytes were copied, which is only less than length once we reach the end of the file
+    public int fill(byte[] buffer, int offset, int length) throws IOException
+    {
+        int filled = read(position, buffer, offset, length);
+        position += filled;
+        return filled;
+    }
+
+    //Moves where the next fill() carries on from, e.g. past the part of the file a resumed write has already sent
+    public void seek(long position)
+    {
+        this.position = position;
+    }
+
+    //Same as fill, but from anywhere in the file and without moving our position along
+    public int read(long filePosition, byte[] buffer, int offset, int length) throws IOException
+    {
+        if (fileSize >= MAP_THRESHOLD)
+        {
+            return readMapped(filePosition, buffer, offset, length);
+        }
+
+        ByteBuffer target = ByteBuffer.wrap(buffer, offset, length);
+        long readPosition = filePosition;
+        //A single read can come back short, so keep going until the block is full or the file runs out
+        while (target.hasRemaining())
+        {
+            int bytesRead = fileChannel.read(target, readPosition);
+            if (bytesRead == -1) break;
+            readPosition += bytesRead;
+        }
+        return target.position() - offset;
+    }
+
+    private int readMapped(long filePosition, byte[] buffer, int offset, int length) throws IOException
+    {
+        int copied = 0;
+        //A block can straddle two regions, so we may need to map the next one part way through
+        while (copied < length && filePosition + copied < fileSize)
+        {
+            long readPosition = filePosition + copied;
+            if (mappedRegion == null || readPosition < mappedRegionStart || readPosition >= mappedRegionStart + mappedRegion.capacity())
+            {
+                mappedRegionStart = (readPosition / MAP_REGION_SIZE) * MAP_REGION_SIZE;
+                mappedRegion = fileChannel.map(FileChannel.MapMode.READ_ONLY, mappedRegionStart, Math.min(MAP_REGION_SIZE, fileSize - mappedRegionStart));
+            }
+
+            int regionOffset = (int)(readPosition - mappedRegionStart);
+            int toCopy = Math.min(length - copied, mappedRegion.capacity() - regionOffset);
+            mappedRegion.get(regionOffset, buffer, offset + copied, toCopy);
+            copied += toCopy;
+        }
+        return copied;
+    }
+
+    @Override
+    public void close() throws IOException
+    {
+        //The mapping goes when it is garbage collected, closing the channel doesn't affect it
+        mappedRegion = null;
+        fileChannel.close();
+    }
+}
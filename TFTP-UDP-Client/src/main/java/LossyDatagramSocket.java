@@ -0,0 +1,37 @@
+import java.io.IOException;
+import java.net.DatagramPacket;
+import java.net.DatagramSocket;
+import java.net.SocketException;
+import java.util.concurrent.ThreadLocalRandom;
+
+//DatagramSocket that throws away a share of the packets going through it, in both directions
+//Lets the load generator see how transfers (and the retry logic) cope with a lossy network without needing one
+public class LossyDatagramSocket extends DatagramSocket {
+
+    private final double lossRate;
+
+    public LossyDatagramSocket(double lossRate) throws SocketException
+    {
+        super();
+        this.lossRate = lossRate;
+    }
+
+    @Override
+    public void send(DatagramPacket packet) throws IOException
+    {
+        //Pretend it went missing on the way
+        if (ThreadLocalRandom.current().nextDouble() < lossRate) return;
+        super.send(packet);
+    }
+
+    @Override
+    public void receive(DatagramPacket packet) throws IOException
+    {
+        //Keep receiving until we get a packet we don't drop, the timeout starts again each time but that is close enough
+        do
+        {
+            super.receive(packet);
+        }
+        while (ThreadLocalRandom.current().nextDouble() < lossRate);
+    }
+}
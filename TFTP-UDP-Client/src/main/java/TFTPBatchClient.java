@@ -0,0 +1,238 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Runs a whole list of transfers without anyone at the keyboard, several at a time
+//Each line of the manifest is one transfer, "get <server file> <local file>" or "put <server file> <local file>"
+//(the local file is the rest of the line, so it may have spaces in it). Blank lines and lines starting with # are skipped
+//
+//Usage: TFTPBatchClient --manifest deploy.txt [--parallel 8] [--host 127.0.0.1]
+//  --manifest file listing the transfers
+//  --parallel how many transfers run at once
+//Exits with 1 if any transfer failed, so scripts can tell
+//The TCP client has the same batch client, only runWorker (how a worker gets through its transfers) is different
+//Here every transfer is a request of its own, so a worker simply runs one after another
+public class TFTPBatchClient {
+
+    public static void main(String[] args) throws Exception
+    {
+        String hostname = "127.0.0.1";
+        String manifest = null;
+        int parallelism = 8;
+
+        for (int i = 0; i < args.length; i++)
+        {
+            if (i + 1 == args.length)
+            {
+                throw new IllegalArgumentException("Missing value for " + args[i]);
+            }
+            else if (args[i].equals("--host"))
+            {
+                hostname = args[++i];
+            }
+            else if (args[i].equals("--manifest"))
+            {
+                manifest = args[++i];
+            }
+            else if (args[i].equals("--parallel"))
+            {
+                parallelism = Math.max(1, Integer.parseInt(args[++i]));
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        if (manifest == null)
+        {
+            System.out.println("Usage: TFTPBatchClient --manifest file [--parallel N] [--host hostname]");
+            return;
+        }
+
+        List<Transfer> transfers = readManifest(Path.of(manifest));
+        boolean allSucceeded = new TFTPBatchClient(hostname, parallelism).run(transfers);
+        System.exit(allSucceeded ? 0 : 1);
+    }
+
+    public static final class Transfer{
+        final TFTPClient.Command command;
+        final String serverFilename;
+        final String localFilename;
+
+        public Transfer(TFTPClient.Command command, String serverFilename, String localFilename)
+        {
+            this.command = command;
+            this.serverFilename = serverFilename;
+            this.localFilename = localFilename;
+        }
+
+        @Override
+        public String toString()
+        {
+            return (command == TFTPClient.Command.READ ? "get " : "put ") + serverFilename + " " + localFilename;
+        }
+    }
+
+    public static List<Transfer> readManifest(Path manifest) throws IOException
+    {
+        List<Transfer> transfers = new ArrayList<>();
+        int lineNumber = 0;
+        for (String line : Files.readAllLines(manifest))
+        {
+            lineNumber++;
+            line = line.strip();
+            if (line.isEmpty() || line.startsWith("#")) continue;
+
+            String[] fields = line.split("\\s+", 3);
+            if (fields.length < 3)
+            {
+                throw new IOException(manifest + ":" + lineNumber + ": expected \"get|put <server file> <local file>\"");
+            }
+
+            if (fields[0].equalsIgnoreCase("get"))
+            {
+                transfers.add(new Transfer(TFTPClient.Command.READ, fields[1], fields[2]));
+            }
+            else if (fields[0].equalsIgnoreCase("put"))
+            {
+                transfers.add(new Transfer(TFTPClient.Command.WRITE, fields[1], fields[2]));
+            }
+            else
+            {
+                throw new IOException(manifest + ":" + lineNumber + ": unknown command " + fields[0]);
+            }
+        }
+        return transfers;
+    }
+
+    private final String hostname;
+    private final int parallelism;
+
+    private final AtomicInteger succeeded = new AtomicInteger();
+    private final AtomicInteger failed = new AtomicInteger();
+
+    public TFTPBatchClient(String hostname, int parallelism)
+    {
+        this.hostname = hostname;
+        this.parallelism = parallelism;
+    }
+
+    //Returns whether every transfer worked
+    public boolean run(List<Transfer> transfers) throws InterruptedException
+    {
+        //Transfers are run quietly, only failures are worth seeing here
+        PrintStream report = System.out;
+        report.println("Running " + transfers.size() + " transfers, " + parallelism + " at a time");
+
+        //Workers take transfers off this until it is empty
+        Queue<Transfer> queue = new ConcurrentLinkedQueue<>(transfers);
+        ExecutorService workers = Executors.newFixedThreadPool(parallelism);
+        long startTime = System.nanoTime();
+        long bytesTransferred = 0;
+        try
+        {
+            List<Future<Long>> results = new ArrayList<>();
+            for (int i = 0; i < parallelism; i++)
+            {
+                results.add(workers.submit(() -> runWorker(queue, report)));
+            }
+            for (Future<Long> result : results)
+            {
+                try
+                {
+                    bytesTransferred += result.get();
+                }
+                catch (ExecutionException ignored)
+                {
+                    //runWorker catches everything itself
+                }
+            }
+        }
+        finally
+        {
+            workers.shutdown();
+        }
+
+        double wallSeconds = (System.nanoTime() - startTime) / 1e9;
+        report.printf("Finished in %.2fs%n", wallSeconds);
+        report.printf("Succeeded: %d, failed: %d%n", succeeded.get(), failed.get());
+        report.printf("Throughput: %.1f files/s, %.1f MB/s%n", succeeded.get() / wallSeconds, bytesTransferred / wallSeconds / (1024 * 1024));
+        return failed.get() == 0;
+    }
+
+    //Returns the total size of the files this worker moved
+    private long runWorker(Queue<Transfer> queue, PrintStream report)
+    {
+        long bytesTransferred = 0;
+        Transfer transfer;
+        while ((transfer = queue.poll()) != null)
+        {
+            TFTPClient.Result result;
+            String reason = null;
+            try
+            {
+                prepare(transfer);
+                result = TFTPClient.runTFTPCommand(transfer.command, hostname, transfer.serverFilename, transfer.localFilename, 0, false, true);
+            }
+            catch (Exception e)
+            {
+                //IOExceptions and the RuntimeExceptions the client wraps them in
+                result = TFTPClient.Result.FAILED;
+                reason = e.getMessage();
+            }
+            bytesTransferred += finished(transfer, result, reason, report);
+        }
+        return bytesTransferred;
+    }
+
+    //Anything the local side needs before the transfer can start
+    private static void prepare(Transfer transfer) throws IOException
+    {
+        File localFile = new File(transfer.localFilename);
+        if (transfer.command == TFTPClient.Command.READ)
+        {
+            //Deploys often lay files out in directories that don't exist yet
+            File parent = localFile.getAbsoluteFile().getParentFile();
+            if (parent != null) Files.createDirectories(parent.toPath());
+        }
+        else if (!localFile.isFile())
+        {
+            throw new IOException("Local file does not exist");
+        }
+    }
+
+    //Returns the size of the file moved, 0 if the transfer failed
+    private long finished(Transfer transfer, TFTPClient.Result result, String reason, PrintStream report)
+    {
+        if (result == TFTPClient.Result.SUCCESS)
+        {
+            succeeded.incrementAndGet();
+            return new File(transfer.localFilename).length();
+        }
+
+        if (reason == null)
+        {
+            reason = result == TFTPClient.Result.TIMED_OUT ? "server stopped responding" : "server sent an error";
+        }
+        if (transfer.command == TFTPClient.Command.READ)
+        {
+            //Don't leave half a file (or an empty one) behind for the deploy to pick up
+            new File(transfer.localFilename).delete();
+        }
+        failed.incrementAndGet();
+        report.println("Failed (" + reason + "): " + transfer);
+        return 0;
+    }
+}
@@ -1,15 +1,23 @@
+import java.io.ByteArrayOutputStream;
 import java.io.File;
-import java.io.FileInputStream;
 import java.io.FileOutputStream;
 import java.io.IOException;
 import java.net.*;
 import java.nio.charset.StandardCharsets;
 import java.util.*;
-import java.util.Random;
 
 public class TFTPClient {
 
     public static void main(String[] args) {
+        //"--resume" carries on from where an earlier transfer of the same file broke off, rather than starting again
+        for (String arg : args)
+        {
+            if (arg.equals("--resume"))
+            {
+                resume = true;
+            }
+        }
+
         String input = "";
         try(Scanner scanner = new Scanner(System.in))
         {
@@ -71,16 +79,49 @@ public class TFTPClient {
         }
     }
 
-    private enum Command{
+    public enum Command{
         READ,
         WRITE
     }
 
+    //How a transfer ended, TIMED_OUT means the server stopped answering part way through
+    public enum Result{
+        SUCCESS,
+        FAILED,
+        TIMED_OUT
+    }
+
     private static String clientControlledTargetFilename;
     private static String hostname;
     private static String serverControlledTargetFilename;
+    //Number of blocks we ask the server to send before it waits for an acknowledgement (RFC 7440)
+    private static int requestedWindowSize = 8;
+    //Bytes of file data per DATA packet we ask the server for (RFC 2348)
+    //1468 fills a standard 1500 byte ethernet frame once the IP, UDP and TFTP headers are added
+    private static int requestedBlockSize = 1468;
+    private static boolean resume;
 
     public static void runTFTPCommand(Command command) throws IOException {
+        runTFTPCommand(command, hostname, serverControlledTargetFilename, clientControlledTargetFilename, 0, resume);
+    }
+
+    public static Result runTFTPCommand(Command command, String hostname, String serverControlledTargetFilename, String clientControlledTargetFilename, double lossRate) throws IOException {
+        return runTFTPCommand(command, hostname, serverControlledTargetFilename, clientControlledTargetFilename, lossRate, false);
+    }
+
+    //Runs a single transfer, everything it needs is passed in so any number of these can run at once (see TFTPLoadGenerator)
+    //lossRate is the share of packets (both ways) to throw away, to see how we cope on a bad network. 0 for none
+    //resume picks up a transfer that broke off part way through. We tell the server how many bytes of the file we
+    //have (the "offset" option), for a read that is how much of the local file is already there and for a write it
+    //is the size of the local file, the server answers with how many of those it agrees are done and only the rest
+    //is sent. A server that doesn't know the option leaves it out of its answer and the transfer starts from the top
+    public static Result runTFTPCommand(Command command, String hostname, String serverControlledTargetFilename, String clientControlledTargetFilename, double lossRate, boolean resume) throws IOException {
+        return runTFTPCommand(command, hostname, serverControlledTargetFilename, clientControlledTargetFilename, lossRate, resume, false);
+    }
+
+    //quiet leaves the console alone and only returns the Result, for running lots of transfers at once (see
+    //TFTPBatchClient and TFTPLoadGenerator) where a few lines from each would drown everything else out
+    public static Result runTFTPCommand(Command command, String hostname, String serverControlledTargetFilename, String clientControlledTargetFilename, double lossRate, boolean resume, boolean quiet) throws IOException {
         byte[] buffer = new byte[256];
 
         if (command == Command.READ)
@@ -93,34 +134,86 @@ public class TFTPClient {
         }
         else
         {
-            System.out.println("Not a valid command");
-            return;
+            if (!quiet) System.out.println("Not a valid command");
+            return Result.FAILED;
         }
 
         buffer[0] = (byte)0;
 
-        //args[2] is the target filename
-        int filenameLength = serverControlledTargetFilename.length();
-        System.arraycopy(serverControlledTargetFilename.getBytes(), 0, buffer, 2, filenameLength);
+        //Filename, mode and then any options we want, each as a zero terminated string
+        //Only reads ask for a window, the server keeps writes stop-and-wait
+        ByteArrayOutputStream requestFields = new ByteArrayOutputStream();
+        requestFields.writeBytes(serverControlledTargetFilename.getBytes(StandardCharsets.UTF_8));
+        requestFields.write(0);
+        requestFields.writeBytes("octet".getBytes(StandardCharsets.US_ASCII));
+        requestFields.write(0);
+        if (requestedBlockSize != 512)
+        {
+            requestFields.writeBytes("blksize".getBytes(StandardCharsets.US_ASCII));
+            requestFields.write(0);
+            requestFields.writeBytes(Integer.toString(requestedBlockSize).getBytes(StandardCharsets.US_ASCII));
+            requestFields.write(0);
+        }
+        if (command == Command.READ && requestedWindowSize > 1)
+        {
+            requestFields.writeBytes("windowsize".getBytes(StandardCharsets.US_ASCII));
+            requestFields.write(0);
+            requestFields.writeBytes(Integer.toString(requestedWindowSize).getBytes(StandardCharsets.US_ASCII));
+            requestFields.write(0);
+        }
+        if (resume)
+        {
+            requestFields.writeBytes("offset".getBytes(StandardCharsets.US_ASCII));
+            requestFields.write(0);
+            requestFields.writeBytes(Long.toString(new File(clientControlledTargetFilename).length()).getBytes(StandardCharsets.US_ASCII));
+            requestFields.write(0);
+        }
+        System.arraycopy(requestFields.toByteArray(), 0, buffer, 2, Math.min(requestFields.size(), buffer.length - 2));
 
         //bind socket to different port than server
-        //Pick random port number across a large amount of values, this almost guarantees that there will be no conflicts between clients
-        //Done as described in the protocol specification
-        //Upper bound of 10k
-        //lower bound of 1024
-        DatagramSocket mainSocket = new DatagramSocket(new Random().nextInt(10000 - 1024) + 1024);
+        //The port is picked at random by the OS (as the protocol specification asks), picking one ourselves would clash
+        //as soon as there are a few thousand clients on the same machine
+        DatagramSocket mainSocket = lossRate > 0 ? new LossyDatagramSocket(lossRate) : new DatagramSocket();
+        try
+        {
+            if (command == Command.READ)
+            {
+                //A whole window can arrive before we get round to reading any of it, anything that doesn't fit
+                //in the socket's buffer is dropped and has to be sent again
+                int windowBytes = requestedWindowSize * (requestedBlockSize + 4);
+                if (mainSocket.getReceiveBufferSize() < windowBytes)
+                {
+                    mainSocket.setReceiveBufferSize(windowBytes);
+                }
+            }
+            return runTransfer(command, mainSocket, buffer, hostname, clientControlledTargetFilename, resume, quiet);
+        }
+        finally
+        {
+            mainSocket.close();
+        }
+    }
 
+    private static Result runTransfer(Command command, DatagramSocket mainSocket, byte[] buffer, String hostname, String clientControlledTargetFilename, boolean resume, boolean quiet) throws IOException
+    {
         InetAddress address = InetAddress.getByName(hostname);
         DatagramPacket requestPack = new DatagramPacket(buffer, buffer.length);
         requestPack.setAddress(address);
         requestPack.setPort(20001); //Server base communication port, used for creating requests
 
         mainSocket.send(requestPack);
+        //Times how long the server takes to answer us, which decides how long we wait before resending
+        RetransmissionTimer retransmissionTimer = new RetransmissionTimer(1000);
+        //When we last sent something we are waiting on a reply to, and whether it was a resend (Karn's rule, can't time those)
+        long sentAt = System.currentTimeMillis();
+        boolean resent = false;
 
         InetAddress connectionAddress = null;
         int connectionPort = -1;
-        final int blockSize = 512;
+        //Stays at 512 unless the server agrees to our block size in an OACK
+        int blockSize = 512;
         boolean errorThrown = false;
+        boolean timedOut = false;
         String errorText = "Error";
 
         if (command == Command.READ)
@@ -130,9 +223,12 @@ public class TFTPClient {
             //See if the file exists and if it doesn't create it
             targetFile.createNewFile();
 
+            //When resuming the file is kept until the server says where it is starting from, then cut back to that
+            //point and added to from there
             FileOutputStream outputStream = null;
+            boolean startPositionKnown = !resume;
             try {
-                outputStream = new FileOutputStream(targetFile);
+                outputStream = new FileOutputStream(targetFile, resume);
             }
             catch (IOException e){
                 throw new IOException(e);
@@ -140,6 +236,18 @@ public class TFTPClient {
 
             boolean addressReceived = false;
             int blockNumber = 1;
+            //Stays at 1 (stop-and-wait) unless the server agrees to our window size in an OACK
+            int windowSize = 1;
+            //Set once we have acknowledged a gap in the blocks, so we don't keep acknowledging it for every block
+            //after the missing one
+            boolean gapAcknowledged = false;
+            //Blocks we have taken in order since we last acknowledged anything
+            //The server starts each window from the block after our last acknowledgement, so a window ends windowSize
+            //blocks after that (not at a multiple of windowSize, once a gap has shifted things along)
+            int blocksSinceAcknowledgement = 0;
+            //Whether we are waiting on a reply to the request or an acknowledgement, blocks in the middle of a window
+            //don't get acknowledged so there is nothing to time them against
+            boolean awaitingReply = true;
             //We use a boolean instead of a while(true) and break as I feel it is more descriptive
             boolean lastDataReceived = false;
             byte[] acknowledgementBuffer = new byte[4];
@@ -148,107 +256,169 @@ public class TFTPClient {
             acknowledgementBuffer[0] = 0;
             acknowledgementBuffer[1] = 4;
 
-            //Wait for response, if not first response and we time out send last ack packet again
+            //Create receiver packet
+            //Big enough for the block size we asked for, the server is never allowed to pick something bigger
+            byte[] receiverBuffer = new byte[Math.max(blockSize, requestedBlockSize) + 4];
+            DatagramPacket receiverPacket = new DatagramPacket(receiverBuffer, receiverBuffer.length);
+
+            //Wait for data, we only acknowledge at the end of each window, when we see a gap or when we time out
             //We run this loop until the last piece of data has been received
             //this is signified by it being a shorter length than expected
             while (!lastDataReceived)
             {
-                boolean correctDataBlock = false;
-                //Create receiver packet
-                //Reset buffer each iteration
-                byte[] receiverBuffer = new byte[blockSize + 4];
-                DatagramPacket receiverPacket = new DatagramPacket(receiverBuffer, receiverBuffer.length);
-
-                while (!correctDataBlock)
+                try
                 {
-                    if (blockNumber != 1)
+                    receiverPacket.setLength(receiverBuffer.length);
+                    mainSocket.setSoTimeout((int)retransmissionTimer.getTimeout());
+                    mainSocket.receive(receiverPacket);
+                    long now = System.currentTimeMillis();
+
+                    if (!addressReceived)
                     {
-                        //Send acknowledgement, done first in the iteration, so it can be repeated before we check
-                        //the transmitted data again
-                        //Send acknowledgement for previous block
-                        //Modify acknowledgement packet
-                        int previousBlockNumber = blockNumber - 1;
-                        acknowledgementBuffer[2] = (byte)((previousBlockNumber >> 8) & 0xFF);
-                        acknowledgementBuffer[3] = (byte)(previousBlockNumber & 0xFF);
+                        //Need to save these as they are used to verify the
+                        //block is sent correctly, it is also just nice to have that information
+                        connectionAddress = receiverPacket.getAddress();
+                        connectionPort = receiverPacket.getPort();
 
-                        acknowledgementPacket.setData(acknowledgementBuffer);
+                        acknowledgementPacket.setAddress(connectionAddress);
+                        acknowledgementPacket.setPort(connectionPort);
 
-                        mainSocket.send(acknowledgementPacket);
+                        addressReceived = true;
                     }
 
-                    try
-                    {
-                        mainSocket.setSoTimeout(1000);
-                        mainSocket.receive(receiverPacket);
-
-                        if (!addressReceived)
-                        {
-                            //Need to save these as they are used to verify the
-                            //block is sent correctly, it is also just nice to have that information
-                            connectionAddress = receiverPacket.getAddress();
-                            connectionPort = receiverPacket.getPort();
+                    if (receiverPacket.getPort() != connectionPort) continue;
 
-                            acknowledgementPacket.setAddress(connectionAddress);
-                            acknowledgementPacket.setPort(connectionPort);
+                    byte[] blockData = receiverPacket.getData();
 
-                            addressReceived = true;
+                    if (blockData[1] == 6 && blockNumber == 1)
+                    {
+                        //Options acknowledgement, pick up the window and block size the server agreed to
+                        //then confirm with the special 0th block acknowledgement
+                        String windowSizeValue = readOption(blockData, receiverPacket.getLength(), "windowsize");
+                        if (windowSizeValue != null)
+                        {
+                            windowSize = Integer.parseInt(windowSizeValue);
+                        }
+                        String blockSizeValue = readOption(blockData, receiverPacket.getLength(), "blksize");
+                        if (blockSizeValue != null)
+                        {
+                            blockSize = Integer.parseInt(blockSizeValue);
+                        }
+                        if (!startPositionKnown)
+                        {
+                            startPositionKnown = true;
+                            long resumeOffset = startPosition(readOption(blockData, receiverPacket.getLength(), "offset"), quiet);
+                            outputStream.getChannel().truncate(resumeOffset);
                         }
 
-                        //Validate this is the correct packet
-                        byte[] blockData = receiverPacket.getData();
+                        if (awaitingReply)
+                        {
+                            timeReply(retransmissionTimer, now, sentAt, resent);
+                        }
+                        //A repeat OACK means our 0th acknowledgement was lost, so this one is a resend
+                        resent = !awaitingReply;
+                        sentAt = now;
+                        awaitingReply = true;
+                        sendAcknowledgement(mainSocket, acknowledgementPacket, 0);
+                    }
+                    else if (blockData[1] == 3)
+                    {
                         //Decode block number into single int
                         int sentBlockNumber = ((blockData[2] & 0xff) << 8) | (blockData[3] & 0xff);
 
-                        if (blockData[1] == 3 && sentBlockNumber == blockNumber && receiverPacket.getPort() == connectionPort)
+                        //Block numbers are only 2 bytes on the wire so compare them that way, they wrap on long transfers
+                        if (sentBlockNumber == (blockNumber & 0xFFFF))
                         {
-                            correctDataBlock = true;
-
-                            if (blockData[blockSize+3] == 0)
+                            if (awaitingReply)
                             {
-                                //Final block data has been sent
-                                lastDataReceived = true;
+                                timeReply(retransmissionTimer, now, sentAt, resent);
+                                awaitingReply = false;
                             }
                             else
                             {
-                                blockNumber++;
+                                retransmissionTimer.onProgress();
                             }
 
-                            //Need to actually write the data
-                            //Need to remove ending blank spaces if this was the last data received
-                            //Otherwise they will also be written to the file
-                            int lengthOfActualData = blockSize;
+                            //Anything shorter than a full block is the final block of data
+                            //We use the packet length rather than looking for blank space so files ending in 0 bytes survive
+                            int lengthOfActualData = receiverPacket.getLength() - 4;
+                            if (!startPositionKnown)
+                            {
+                                //No OACK, so the server knows nothing about resuming and is sending the whole file
+                                startPositionKnown = true;
+                                outputStream.getChannel().truncate(0);
+                            }
+                            outputStream.write(blockData, 4, lengthOfActualData);
 
-                            if (lastDataReceived)
+                            if (lengthOfActualData < blockSize)
                             {
-                                //Accounting for the discrepancy between blockSize and length of the data
-                                //caused by opcode and block #
-                                lengthOfActualData += 2;
-                                for (int i = blockSize+3; i >= 0; i--)
-                                {
-                                    if (blockData[i] == 0)
-                                    {
-                                        lengthOfActualData--;
-                                    }
-                                }
+                                lastDataReceived = true;
                             }
 
-                            outputStream.write(blockData, 4, lengthOfActualData);
+                            //Acknowledge the end of each window and the final block
+                            blocksSinceAcknowledgement++;
+                            if (lastDataReceived || blocksSinceAcknowledgement == windowSize)
+                            {
+                                sendAcknowledgement(mainSocket, acknowledgementPacket, blockNumber);
+                                blocksSinceAcknowledgement = 0;
+                                sentAt = now;
+                                resent = false;
+                                awaitingReply = true;
+                            }
+
+                            blockNumber++;
+                            gapAcknowledged = false;
                         }
-                        else if (blockData[1] == 5)
+                        else if (!gapAcknowledged)
                         {
-                            //This means the file could not be read
-                            //This is either because the file doesn't exist
-                            //Or because the server does not have access to it
-                            correctDataBlock = true;
-                            lastDataReceived = true;
-                            errorThrown = true;
-                            errorText = "File could not be read from!";
+                            //Either a block went missing or this is a repeat of something we already have
+                            //Acknowledge the last block we got in order so the server goes back to the one after it
+                            sendAcknowledgement(mainSocket, acknowledgementPacket, blockNumber - 1);
+                            blocksSinceAcknowledgement = 0;
+                            gapAcknowledged = true;
+                            //If we were already waiting on an acknowledgement this is effectively a resend of it
+                            resent = awaitingReply;
+                            sentAt = now;
+                            awaitingReply = true;
                         }
                     }
-                    catch (SocketTimeoutException e)
+                    else if (blockData[1] == 5)
+                    {
+                        //This means the file could not be read
+                        //This is either because the file doesn't exist
+                        //Or because the server does not have access to it
+                        lastDataReceived = true;
+                        errorThrown = true;
+                        errorText = "File could not be read from!";
+                    }
+                }
+                catch (SocketTimeoutException e)
+                {
+                    //Not printed, on a lossy link there is one of these for every lost packet and the console would
+                    //hold up the transfer. If the server really has gone the error below says so
+                    if (!retransmissionTimer.onTimeout())
+                    {
+                        //Server has gone away, don't wait for it forever
+                        lastDataReceived = true;
+                        errorThrown = true;
+                        timedOut = true;
+                        errorText = "Server stopped responding!";
+                    }
+                    else if (addressReceived)
+                    {
+                        //Acknowledge the last block we got in order again so the server resends from there
+                        sendAcknowledgement(mainSocket, acknowledgementPacket, blockNumber - 1);
+                        blocksSinceAcknowledgement = 0;
+                        gapAcknowledged = true;
+                    }
+                    else
                     {
-                        System.out.println(e);
+                        //Request (or the server's first reply) went missing
+                        mainSocket.send(requestPack);
                     }
+                    sentAt = System.currentTimeMillis();
+                    resent = true;
+                    awaitingReply = true;
                 }
             }
             //Close our output stream
@@ -260,68 +430,65 @@ public class TFTPClient {
             //Write operation
             //Setup up input stream
             File targetFile = new File(clientControlledTargetFilename);
-            FileInputStream inputStream = null;
+            FileBlockSource blockSource = null;
             try {
-                inputStream = new FileInputStream(targetFile);
+                blockSource = new FileBlockSource(targetFile);
             }
             catch (IOException e){
                 throw new IOException(e);
             }
 
-            byte[] acknowledgementBuffer = new byte[4];
+            //Room for an OACK as well as a plain acknowledgement
+            byte[] acknowledgementBuffer = new byte[256];
+            DatagramPacket acknowledgementPacket = new DatagramPacket(acknowledgementBuffer, acknowledgementBuffer.length);
 
-            //Setup initial buffer data
+            //Every block is built in the same buffer and sent in the same packet
+            //They are only made once we know the block size (and where to send them), i.e. after the 0th acknowledgement
+            byte[] bufferToSend = null;
+            DatagramPacket dataPacket = null;
 
             boolean lastDataSent = false;
             while (!lastDataSent)
             {
-                //Buffer to send
-                byte[] bufferToSend = new byte[blockSize+4];
-                //OPCODE
-                bufferToSend[0] = 0;
-                bufferToSend[1] = 3;
                 //Generate data block
                 //In the case of the 0block ack packet we don't want to send data first
-                DatagramPacket dataPacket = null;
                 if (blockNumber != 0)
                 {
+                    if (bufferToSend == null)
+                    {
+                        bufferToSend = new byte[blockSize+4];
+                        //OPCODE
+                        bufferToSend[0] = 0;
+                        bufferToSend[1] = 3;
+                        dataPacket = new DatagramPacket(bufferToSend, bufferToSend.length, connectionAddress, connectionPort);
+                    }
+
                     bufferToSend[2] = (byte)((blockNumber >> 8) & 0xFF);
                     bufferToSend[3] = (byte)(blockNumber & 0xFF);
 
                     //Start data at 4, skipping over opcode and block #
-                    int bufferIndex = 4;
-                    while (bufferIndex < blockSize + 4)
-                    {
-                        try {
-                            int nextByte = inputStream.read();
-                            if (nextByte == -1)
-                            {
-                                lastDataSent = true;
-                                break;
-                            }
-                            else
-                            {
-                                bufferToSend[bufferIndex] = (byte)nextByte;
-                            }
-                        } catch (IOException e) {
-                            lastDataSent = true;
-                            break;
-                        }
-
-                        bufferIndex++;
+                    //Read the whole block in one go, it is only short once we reach the end of the file
+                    //a read error is treated the same way
+                    int dataLength;
+                    try {
+                        dataLength = blockSource.fill(bufferToSend, 4, blockSize);
+                    } catch (IOException e) {
+                        dataLength = 0;
                     }
 
-                    dataPacket = new DatagramPacket(bufferToSend, bufferIndex);
+                    if (dataLength < blockSize)
+                    {
+                        lastDataSent = true;
+                    }
 
-                    dataPacket.setAddress(connectionAddress);
-                    dataPacket.setPort(connectionPort);
+                    dataPacket.setLength(dataLength + 4);
                 }
 
-                //Create acknowledgement packet receiver
-                DatagramPacket acknowledgementPacket = new DatagramPacket(acknowledgementBuffer, 4);
-
                 //Wait for ack packet
+                //The final block too, until the server acknowledges it we don't know the write worked
                 boolean acknowledgementReceived = false;
+                //The request was sent before the loop, data blocks haven't been yet
+                boolean blockSent = blockNumber == 0;
                 while (!acknowledgementReceived)
                 {
                     try
@@ -333,15 +500,18 @@ public class TFTPClient {
                             //This needs to be first in the iteration so we send data before checking if ack packet
                             //was received
                             mainSocket.send(dataPacket);
-
-                            if (lastDataSent) break;
+                            sentAt = System.currentTimeMillis();
+                            resent = blockSent;
+                            blockSent = true;
                         }
 
                         try
                         {
-                            //1 second long timeout
-                            mainSocket.setSoTimeout(1000);
+                            //Timeout adapts to how quickly the server has been answering us
+                            mainSocket.setSoTimeout((int)retransmissionTimer.getTimeout());
+                            acknowledgementPacket.setLength(acknowledgementBuffer.length);
                             mainSocket.receive(acknowledgementPacket);
+                            long now = System.currentTimeMillis();
 
                             byte[] acknowledgementData = acknowledgementPacket.getData();
                             if (blockNumber == 0)
@@ -351,13 +521,33 @@ public class TFTPClient {
                                 connectionPort = acknowledgementPacket.getPort();
                             }
 
-                            if (acknowledgementData[1] == 4 && acknowledgementPacket.getPort() == connectionPort)
+                            if (acknowledgementData[1] == 6 && blockNumber == 0 && acknowledgementPacket.getPort() == connectionPort)
+                            {
+                                //Options acknowledgement stands in for the 0th acknowledgement
+                                //Pick up the block size the server agreed to before we build the first data block
+                                String blockSizeValue = readOption(acknowledgementData, acknowledgementPacket.getLength(), "blksize");
+                                if (blockSizeValue != null)
+                                {
+                                    blockSize = Integer.parseInt(blockSizeValue);
+                                }
+                                if (resume)
+                                {
+                                    //Skip what the server already has
+                                    blockSource.seek(startPosition(readOption(acknowledgementData, acknowledgementPacket.getLength(), "offset"), quiet));
+                                }
+                                timeReply(retransmissionTimer, now, sentAt, resent);
+                                acknowledgementReceived = true;
+                                blockNumber++;
+                            }
+                            else if (acknowledgementData[1] == 4 && acknowledgementPacket.getPort() == connectionPort)
                             {
                                 int sentBlockNumber = ((acknowledgementData[2] & 0xff) << 8) | (acknowledgementData[3] & 0xff);
 
                                 //Do block numbers match?
-                                if (sentBlockNumber == blockNumber)
+                                //Block numbers are only 2 bytes on the wire so compare them that way, they wrap on long transfers
+                                if (sentBlockNumber == (blockNumber & 0xFFFF))
                                 {
+                                    timeReply(retransmissionTimer, now, sentAt, resent);
                                     acknowledgementReceived = true;
                                     blockNumber++; //Update block number now we have received ack packet
                                 }
@@ -375,7 +565,25 @@ public class TFTPClient {
                                 errorText = "File could not be written too!";
                             }
                         }
-                        catch (SocketTimeoutException ignored){ }
+                        catch (SocketTimeoutException e)
+                        {
+                            if (!retransmissionTimer.onTimeout())
+                            {
+                                //Server has gone away, don't wait for it forever
+                                acknowledgementReceived = true;
+                                lastDataSent = true;
+                                errorThrown = true;
+                                timedOut = true;
+                                errorText = "Server stopped responding!";
+                            }
+                            else if (blockNumber == 0)
+                            {
+                                //Request (or the server's first reply) went missing
+                                mainSocket.send(requestPack);
+                                sentAt = System.currentTimeMillis();
+                                resent = true;
+                            }
+                        }
                     }
                     catch (IOException e)
                     {
@@ -385,15 +593,71 @@ public class TFTPClient {
             }
 
             //Close our input stream
-            inputStream.close();
+            blockSource.close();
+        }
+
+        if (!quiet)
+        {
+            if (errorThrown)
+            {
+                System.out.println(errorText);
+            }
+
+            System.out.println("[Command Run Successfully]");
         }
 
-        if (errorThrown)
+        if (timedOut)
         {
-            System.out.println(errorText);
+            return Result.TIMED_OUT;
         }
+        return errorThrown ? Result.FAILED : Result.SUCCESS;
+    }
 
-        System.out.println("[Command Run Successfully]");
-        mainSocket.close();
+    private static void timeReply(RetransmissionTimer retransmissionTimer, long now, long sentAt, boolean resent)
+    {
+        //Karn's rule, a reply to something we sent more than once can't be timed
+        if (resent)
+        {
+            retransmissionTimer.onProgress();
+        }
+        else
+        {
+            retransmissionTimer.onRoundTrip(now - sentAt);
+        }
+    }
+
+    private static void sendAcknowledgement(DatagramSocket socket, DatagramPacket acknowledgementPacket, int blockNumber) throws IOException
+    {
+        //Modify acknowledgement packet
+        //Convert single int "blockNumber" into 2 bytes using binary operations
+        byte[] acknowledgementBuffer = acknowledgementPacket.getData();
+        acknowledgementBuffer[2] = (byte)((blockNumber >> 8) & 0xFF);
+        acknowledgementBuffer[3] = (byte)(blockNumber & 0xFF);
+        socket.send(acknowledgementPacket);
+    }
+
+    //Where a resumed transfer starts, from the offset in the server's OACK (missing if it doesn't know about resuming)
+    private static long startPosition(String offsetValue, boolean quiet)
+    {
+        long resumeOffset = offsetValue == null ? 0 : Long.parseLong(offsetValue);
+        if (resumeOffset > 0 && !quiet)
+        {
+            System.out.println("Resuming from byte " + resumeOffset);
+        }
+        return resumeOffset;
+    }
+
+    private static String readOption(byte[] optionsData, int optionsLength, String optionName)
+    {
+        //OACK is the opcode followed by zero terminated option name/value pairs
+        String[] fields = new String(optionsData, 2, optionsLength - 2, StandardCharsets.US_ASCII).split("\0");
+        for (int i = 0; i + 1 < fields.length; i += 2)
+        {
+            if (fields[i].equalsIgnoreCase(optionName))
+            {
+                return fields[i + 1];
+            }
+        }
+        return null;
     }
 }
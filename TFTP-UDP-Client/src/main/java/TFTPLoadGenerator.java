@@ -0,0 +1,256 @@
+import java.io.File;
+import java.io.IOException;
+import java.io.PrintStream;
+import java.nio.file.Files;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+//Lots of clients reading from the same server at once, like a room full of machines all PXE booting at 9am
+//Every simulated client is a normal TFTPClient READ on a thread of its own, they arrive at a fixed rate
+//(or all at once) and each picks a file from the mix at random
+//
+//Usage: TFTPLoadGenerator --files vmlinuz:1,initrd.img:1 [--clients 1000] [--rate 200] [--loss 0.01] [--host 127.0.0.1]
+//  --files   files to read from the server, each with an optional weight (how often it is picked relative to the others)
+//  --clients how many transfers to run in total
+//  --rate    new clients per second, 0 starts them all at once
+//  --loss    share of packets each client drops (both ways), 0.01 is 1%
+public class TFTPLoadGenerator {
+
+    //Clients spend nearly all their time blocked on a socket, a small stack lets us have thousands of them
+    private static final long CLIENT_STACK_SIZE = 256 * 1024;
+
+    public static void main(String[] args) throws Exception
+    {
+        String hostname = "127.0.0.1";
+        int clientCount = 1000;
+        double arrivalRate = 0;
+        double lossRate = 0;
+        List<String> files = new ArrayList<>();
+        List<Integer> fileWeights = new ArrayList<>();
+
+        for (int i = 0; i + 1 < args.length; i += 2)
+        {
+            if (args[i].equals("--host"))
+            {
+                hostname = args[i + 1];
+            }
+            else if (args[i].equals("--clients"))
+            {
+                clientCount = Integer.parseInt(args[i + 1]);
+            }
+            else if (args[i].equals("--rate"))
+            {
+                arrivalRate = Double.parseDouble(args[i + 1]);
+            }
+            else if (args[i].equals("--loss"))
+            {
+                lossRate = Double.parseDouble(args[i + 1]);
+            }
+            else if (args[i].equals("--files"))
+            {
+                for (String file : args[i + 1].split(","))
+                {
+                    int weightStart = file.lastIndexOf(':');
+                    files.add(weightStart < 0 ? file : file.substring(0, weightStart));
+                    fileWeights.add(weightStart < 0 ? 1 : Integer.parseInt(file.substring(weightStart + 1)));
+                }
+            }
+            else
+            {
+                throw new IllegalArgumentException("Unknown option " + args[i]);
+            }
+        }
+
+        if (files.isEmpty())
+        {
+            System.out.println("Usage: TFTPLoadGenerator --files name[:weight],... [--clients N] [--rate per second] [--loss 0-1] [--host hostname]");
+            return;
+        }
+
+        new TFTPLoadGenerator(hostname, clientCount, arrivalRate, lossRate, files, fileWeights).run();
+    }
+
+    private final String hostname;
+    private final int clientCount;
+    private final double arrivalRate;
+    private final double lossRate;
+    private final List<String> files;
+    private final int[] cumulativeWeights;
+
+    //Where each client writes what it reads, every file is deleted again as soon as its transfer is over
+    private final File outputDirectory;
+
+    //Filled in by each client as it finishes
+    private final long[] completionTimes;
+    private final TFTPClient.Result[] results;
+    private final AtomicLong bytesReceived = new AtomicLong();
+    private final AtomicInteger inFlight = new AtomicInteger();
+    private final AtomicInteger peakInFlight = new AtomicInteger();
+    private final AtomicInteger exceptionCount = new AtomicInteger();
+    private volatile Exception firstException;
+
+    public TFTPLoadGenerator(String hostname, int clientCount, double arrivalRate, double lossRate, List<String> files, List<Integer> fileWeights) throws IOException
+    {
+        this.hostname = hostname;
+        this.clientCount = clientCount;
+        this.arrivalRate = arrivalRate;
+        this.lossRate = lossRate;
+        this.files = files;
+        this.cumulativeWeights = new int[fileWeights.size()];
+        int totalWeight = 0;
+        for (int i = 0; i < fileWeights.size(); i++)
+        {
+            totalWeight += fileWeights.get(i);
+            cumulativeWeights[i] = totalWeight;
+        }
+
+        this.outputDirectory = Files.createTempDirectory("tftp-load").toFile();
+        this.outputDirectory.deleteOnExit();
+        this.completionTimes = new long[clientCount];
+        this.results = new TFTPClient.Result[clientCount];
+    }
+
+    public void run() throws InterruptedException
+    {
+        PrintStream report = System.out;
+        report.println("Starting " + clientCount + " clients" + (arrivalRate > 0 ? " at " + arrivalRate + "/s" : " at once")
+                + (lossRate > 0 ? " with " + (lossRate * 100) + "% loss" : ""));
+
+        CountDownLatch finished = new CountDownLatch(clientCount);
+        long startTime = System.nanoTime();
+
+        for (int i = 0; i < clientCount; i++)
+        {
+            if (arrivalRate > 0)
+            {
+                //Client i arrives i / rate seconds after the start
+                long arrivalTime = startTime + (long)(i * 1_000_000_000L / arrivalRate);
+                long wait = arrivalTime - System.nanoTime();
+                if (wait > 0)
+                {
+                    Thread.sleep(wait / 1_000_000, (int)(wait % 1_000_000));
+                }
+            }
+
+            int clientNumber = i;
+            new Thread(null, () -> {
+                runClient(clientNumber);
+                finished.countDown();
+            }, "LoadClient-" + i, CLIENT_STACK_SIZE).start();
+        }
+
+        finished.await();
+        long wallTime = System.nanoTime() - startTime;
+
+        printReport(report, wallTime);
+        outputDirectory.delete();
+    }
+
+    private void runClient(int clientNumber)
+    {
+        String serverFilename = pickFile();
+        File outputFile = new File(outputDirectory, "client-" + clientNumber);
+
+        int nowInFlight = inFlight.incrementAndGet();
+        peakInFlight.accumulateAndGet(nowInFlight, Math::max);
+        long transferStart = System.nanoTime();
+
+        TFTPClient.Result result;
+        try
+        {
+            //Quiet, with thousands of transfers at once their few lines each would drown out everything else
+            result = TFTPClient.runTFTPCommand(TFTPClient.Command.READ, hostname, serverFilename, outputFile.getAbsolutePath(), lossRate, false, true);
+        }
+        catch (Exception e)
+        {
+            //IOExceptions and the RuntimeExceptions the client wraps them in
+            result = TFTPClient.Result.FAILED;
+            exceptionCount.incrementAndGet();
+            if (firstException == null) firstException = e;
+        }
+
+        completionTimes[clientNumber] = System.nanoTime() - transferStart;
+        results[clientNumber] = result;
+        inFlight.decrementAndGet();
+
+        if (result == TFTPClient.Result.SUCCESS)
+        {
+            bytesReceived.addAndGet(outputFile.length());
+        }
+        outputFile.delete();
+    }
+
+    private String pickFile()
+    {
+        int choice = ThreadLocalRandom.current().nextInt(cumulativeWeights[cumulativeWeights.length - 1]);
+        for (int i = 0; i < cumulativeWeights.length; i++)
+        {
+            if (choice < cumulativeWeights[i])
+            {
+                return files.get(i);
+            }
+        }
+        return files.get(files.size() - 1);
+    }
+
+    private void printReport(PrintStream report, long wallTime)
+    {
+        int succeeded = 0;
+        int failed = 0;
+        int timedOut = 0;
+        long totalTransferTime = 0;
+        long[] successfulTimes = new long[clientCount];
+        for (int i = 0; i < clientCount; i++)
+        {
+            totalTransferTime += completionTimes[i];
+            if (results[i] == TFTPClient.Result.SUCCESS)
+            {
+                successfulTimes[succeeded++] = completionTimes[i];
+            }
+            else if (results[i] == TFTPClient.Result.TIMED_OUT)
+            {
+                timedOut++;
+            }
+            else
+            {
+                failed++;
+            }
+        }
+        successfulTimes = Arrays.copyOf(successfulTimes, succeeded);
+        Arrays.sort(successfulTimes);
+
+        double wallSeconds = wallTime / 1e9;
+        report.printf("Finished in %.2fs%n", wallSeconds);
+        report.printf("Succeeded: %d, failed: %d, timed out: %d%n", succeeded, failed, timedOut);
+        if (exceptionCount.get() > 0)
+        {
+            report.println(exceptionCount.get() + " of the failures threw, the first was: " + firstException);
+        }
+
+        if (succeeded > 0)
+        {
+            //Completion times only count transfers that worked, failures would otherwise pull them around
+            report.printf("Completion time (ms) p50: %.1f, p99: %.1f, p99.9: %.1f, max: %.1f%n",
+                    percentile(successfulTimes, 0.5), percentile(successfulTimes, 0.99), percentile(successfulTimes, 0.999),
+                    successfulTimes[succeeded - 1] / 1e6);
+        }
+
+        //Counted from our side, from sending the request to giving up or getting the last block, which is longer than
+        //the server holds each transfer for (a request it never saw, or the tail of a timeout, still counts here)
+        //so this is only an upper bound on the server's concurrency. Its own figure is tftp_active_transfers
+        //The average comes from Little's law, total time spent in transfers over the wall clock time
+        report.printf("Client-side concurrent transfers peak: %d, average: %.1f%n", peakInFlight.get(), totalTransferTime / (double)wallTime);
+        report.printf("Throughput: %.1f transfers/s, %.1f MB/s%n", succeeded / wallSeconds, bytesReceived.get() / wallSeconds / (1024 * 1024));
+    }
+
+    private static double percentile(long[] sortedTimes, double percentile)
+    {
+        int index = (int)Math.ceil(percentile * sortedTimes.length) - 1;
+        return sortedTimes[Math.max(0, index)] / 1e6;
+    }
+}
@@ -0,0 +1,165 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Process wide read-through cache of DATA block payloads, for when lots of clients are pulling the same files at once
+//Blocks are kept off heap (direct buffers) and the least recently used ones are dropped once we go over the memory cap
+//The first transfer to want a block reads it from disk, any others that want it at the same time wait for that read
+//instead of doing their own
+//Blocks are keyed by the file's last modified time and length as well as its path, so a file that is written to
+//simply stops matching its old blocks, which then age out
+public class BlockCache {
+
+    public static final class BlockKey{
+        final String canonicalPath;
+        final long lastModified;
+        final long fileLength;
+        final int blockSize;
+        final long blockIndex;
+
+        public BlockKey(String canonicalPath, long lastModified, long fileLength, int blockSize, long blockIndex)
+        {
+            this.canonicalPath = canonicalPath;
+            this.lastModified = lastModified;
+            this.fileLength = fileLength;
+            this.blockSize = blockSize;
+            this.blockIndex = blockIndex;
+        }
+
+        @Override
+        public boolean equals(Object other)
+        {
+            if (this == other) return true;
+            if (!(other instanceof BlockKey)) return false;
+            BlockKey key = (BlockKey)other;
+            return lastModified == key.lastModified && fileLength == key.fileLength && blockSize == key.blockSize
+                    && blockIndex == key.blockIndex && canonicalPath.equals(key.canonicalPath);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return Objects.hash(canonicalPath, lastModified, fileLength, blockSize, blockIndex);
+        }
+    }
+
+    private final long capacityBytes;
+    //Access ordered, so iteration starts from the least recently used block
+    //Guarded by a ReentrantLock rather than synchronized so virtual threads don't get pinned waiting on it
+    private final LinkedHashMap<BlockKey, CompletableFuture<ByteBuffer>> blocks = new LinkedHashMap<>(1024, 0.75f, true);
+    private final ReentrantLock lock = new ReentrantLock();
+    private long usedBytes;
+
+    public BlockCache(long capacityBytes)
+    {
+        this.capacityBytes = capacityBytes;
+    }
+
+    //Copies the block's payload into the buffer at its position (moving it along), reading it from the source first if nobody has yet
+    //Returns the payload length, which (like FileBlockSource) is only short for the final block
+    public int read(BlockKey key, FileBlockSource source, ByteBuffer buffer) throws IOException
+    {
+        CompletableFuture<ByteBuffer> cachedBlock;
+        boolean loadBlock = false;
+
+        lock.lock();
+        try
+        {
+            cachedBlock = blocks.get(key);
+            if (cachedBlock == null)
+            {
+                cachedBlock = new CompletableFuture<>();
+                blocks.put(key, cachedBlock);
+                loadBlock = true;
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+
+        if (loadBlock)
+        {
+            //The disk read happens outside the lock, anyone else after this block waits on the future instead
+            int offset = buffer.position();
+            int length;
+            try
+            {
+                length = source.read(key.blockIndex * key.blockSize, buffer, key.blockSize);
+            }
+            catch (IOException e)
+            {
+                lock.lock();
+                try
+                {
+                    blocks.remove(key, cachedBlock);
+                }
+                finally
+                {
+                    lock.unlock();
+                }
+                cachedBlock.completeExceptionally(e);
+                throw e;
+            }
+
+            ByteBuffer payload = ByteBuffer.allocateDirect(length);
+            payload.put(0, buffer, offset, length);
+            cachedBlock.complete(payload);
+            addUsedBytes(length);
+            return length;
+        }
+
+        ByteBuffer payload;
+        try
+        {
+            payload = cachedBlock.get();
+        }
+        catch (ExecutionException e)
+        {
+            //Whoever was loading it failed, try it ourselves without the cache
+            return source.read(key.blockIndex * key.blockSize, buffer, key.blockSize);
+        }
+        catch (InterruptedException e)
+        {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        }
+
+        int length = payload.capacity();
+        buffer.put(buffer.position(), payload, 0, length);
+        buffer.position(buffer.position() + length);
+        return length;
+    }
+
+    private void addUsedBytes(int length)
+    {
+        lock.lock();
+        try
+        {
+            usedBytes += length;
+
+            //Drop the least recently used blocks until we are back under the cap
+            //Blocks still being loaded haven't been counted yet, so they are skipped
+            Iterator<Map.Entry<BlockKey, CompletableFuture<ByteBuffer>>> eldest = blocks.entrySet().iterator();
+            while (usedBytes > capacityBytes && eldest.hasNext())
+            {
+                CompletableFuture<ByteBuffer> block = eldest.next().getValue();
+                if (block.isDone() && !block.isCompletedExceptionally())
+                {
+                    usedBytes -= block.getNow(null).capacity();
+                    eldest.remove();
+                }
+            }
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
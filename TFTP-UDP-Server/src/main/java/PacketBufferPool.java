@@ -0,0 +1,100 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Process wide pool of direct buffers for packets, so a transfer doesn't leave any garbage behind for every block it sends
+//Buffers are handed out in power of two size classes, a transfer takes what it needs when it starts and gives it all
+//back when it finishes, and the next transfer with the same block size picks the same buffers up again
+//Direct buffers go straight to the socket (and file channel) without being copied into a temporary one first
+public class PacketBufferPool {
+
+    //Smallest class is 64 bytes (acknowledgements, error packets, most OACKs), the largest fits any UDP datagram
+    private static final int SMALLEST_CLASS_SHIFT = 6;
+    private static final int LARGEST_CLASS_SHIFT = 17;
+
+    public static final PacketBufferPool SHARED = new PacketBufferPool(64L * 1024 * 1024);
+
+    //One free list per size class, each with its own lock so transfers with different block sizes don't queue up
+    //on each other. ReentrantLock rather than synchronized so virtual threads don't get pinned waiting on it
+    private final List<ArrayDeque<ByteBuffer>> freeBuffers;
+    private final ReentrantLock[] locks;
+    //Most buffers each class keeps hold of, anything given back past that is left to the garbage collector
+    //so a burst of transfers doesn't pin its memory forever
+    private final int[] maxFreeBuffers;
+
+    public PacketBufferPool(long maxRetainedBytesPerClass)
+    {
+        int classCount = LARGEST_CLASS_SHIFT - SMALLEST_CLASS_SHIFT + 1;
+        freeBuffers = new ArrayList<>(classCount);
+        locks = new ReentrantLock[classCount];
+        maxFreeBuffers = new int[classCount];
+        for (int i = 0; i < classCount; i++)
+        {
+            freeBuffers.add(new ArrayDeque<>());
+            locks[i] = new ReentrantLock();
+            maxFreeBuffers[i] = (int)Math.max(1, maxRetainedBytesPerClass >> (SMALLEST_CLASS_SHIFT + i));
+        }
+    }
+
+    //Returns a cleared buffer with room for at least capacity bytes, its limit is set to capacity
+    public ByteBuffer acquire(int capacity)
+    {
+        int sizeClass = sizeClassOf(capacity);
+        ByteBuffer buffer;
+
+        locks[sizeClass].lock();
+        try
+        {
+            buffer = freeBuffers.get(sizeClass).pollFirst();
+        }
+        finally
+        {
+            locks[sizeClass].unlock();
+        }
+
+        if (buffer == null)
+        {
+            //Only happens until the pool has warmed up to however many transfers are running at once
+            buffer = ByteBuffer.allocateDirect(1 << (SMALLEST_CLASS_SHIFT + sizeClass));
+        }
+
+        buffer.clear().limit(capacity);
+        return buffer;
+    }
+
+    //The buffer must not be used again by whoever gave it back
+    public void release(ByteBuffer buffer)
+    {
+        int sizeClass = sizeClassOf(buffer.capacity());
+        //Anything that isn't exactly one of our sizes didn't come from us
+        if (buffer.capacity() != 1 << (SMALLEST_CLASS_SHIFT + sizeClass)) return;
+
+        locks[sizeClass].lock();
+        try
+        {
+            if (freeBuffers.get(sizeClass).size() < maxFreeBuffers[sizeClass])
+            {
+                //Most recently used first, it is the most likely to still be in the CPU cache
+                freeBuffers.get(sizeClass).addFirst(buffer);
+            }
+        }
+        finally
+        {
+            locks[sizeClass].unlock();
+        }
+    }
+
+    private static int sizeClassOf(int capacity)
+    {
+        if (capacity > 1 << LARGEST_CLASS_SHIFT)
+        {
+            throw new IllegalArgumentException("Packet buffers only go up to " + (1 << LARGEST_CLASS_SHIFT) + " bytes");
+        }
+
+        //Round up to the next power of two
+        int shift = 32 - Integer.numberOfLeadingZeros(Math.max(capacity, 1) - 1);
+        return Math.max(shift, SMALLEST_CLASS_SHIFT) - SMALLEST_CLASS_SHIFT;
+    }
+}
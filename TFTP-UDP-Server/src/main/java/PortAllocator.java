@@ -0,0 +1,116 @@
+import java.io.IOException;
+import java.net.BindException;
+import java.net.InetSocketAddress;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.ThreadLocalRandom;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Hands out the local ports (TIDs) transfers run on, so two transfers are never given the same one
+//The protocol specification wants TIDs picked at random, so the pool starts out shuffled. After that it is first in
+//first out, a port that has just been given back goes to the end of the queue, which gives any late packets meant
+//for its last transfer as long as possible to die off before it is used again
+//If every port in our range is taken (or the ones we try are being used by some other program) we let the OS pick one
+public class PortAllocator {
+
+    //How many ports from the pool we try before giving up on it and asking the OS, so a range that is mostly
+    //taken by something else can't hold up the listener
+    private static final int MAX_BIND_ATTEMPTS = 16;
+
+    private final int firstPort;
+    //Free ports, as a ring buffer of port numbers
+    private final int[] freePorts;
+    private int freeHead;
+    private int freeCount;
+    //Which ports in our range are currently given out, so a port can't be given back twice
+    //(and ports the OS picked for us are never added to the pool)
+    private final boolean[] inUse;
+    //Taken by the listener and by every transfer as it finishes
+    private final ReentrantLock lock = new ReentrantLock();
+
+    public PortAllocator(int firstPort, int lastPort)
+    {
+        this.firstPort = firstPort;
+        int portCount = lastPort - firstPort + 1;
+        this.freePorts = new int[portCount];
+        this.inUse = new boolean[portCount];
+
+        for (int i = 0; i < portCount; i++)
+        {
+            freePorts[i] = firstPort + i;
+        }
+        //Fisher-Yates shuffle
+        ThreadLocalRandom random = ThreadLocalRandom.current();
+        for (int i = portCount - 1; i > 0; i--)
+        {
+            int j = random.nextInt(i + 1);
+            int swap = freePorts[i];
+            freePorts[i] = freePorts[j];
+            freePorts[j] = swap;
+        }
+        this.freeCount = portCount;
+    }
+
+    //Binds the channel to a free port and returns it, give it back with release() once the channel is closed
+    public int bind(DatagramChannel channel) throws IOException
+    {
+        for (int attempt = 0; attempt < MAX_BIND_ATTEMPTS; attempt++)
+        {
+            int port = take();
+            if (port == -1) break;
+
+            try
+            {
+                channel.bind(new InetSocketAddress(port));
+                return port;
+            }
+            catch (BindException e)
+            {
+                //Something outside the server has it, put it to the back of the queue and try the next one
+                release(port);
+            }
+        }
+
+        //Out of ports of our own, the OS gives us one of its ephemeral ports instead
+        channel.bind(new InetSocketAddress(0));
+        return ((InetSocketAddress)channel.getLocalAddress()).getPort();
+    }
+
+    //Safe to call with any port, anything we didn't give out (or that has already been given back) is ignored
+    public void release(int port)
+    {
+        int index = port - firstPort;
+        if (index < 0 || index >= inUse.length) return;
+
+        lock.lock();
+        try
+        {
+            if (!inUse[index]) return;
+            inUse[index] = false;
+            freePorts[(freeHead + freeCount) % freePorts.length] = port;
+            freeCount++;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+
+    private int take()
+    {
+        lock.lock();
+        try
+        {
+            if (freeCount == 0) return -1;
+
+            int port = freePorts[freeHead];
+            freeHead = (freeHead + 1) % freePorts.length;
+            freeCount--;
+            inUse[port - firstPort] = true;
+            return port;
+        }
+        finally
+        {
+            lock.unlock();
+        }
+    }
+}
@@ -0,0 +1,179 @@
+import java.nio.ByteBuffer;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+
+//Reads a READ transfer's next blocks while it is waiting for the client to acknowledge the ones it has sent
+//Without this the next window is only read once the acknowledgement arrives, so every round trip has a disk read
+//added on to it. Instead, as soon as a window has gone out, the blocks for the one after it are read on a disk
+//reader thread into a ring of buffers, and filling the window is just a copy out of the ring
+//Once read ahead has started every read of the file goes through the transfer's disk reader, so the file is never
+//read from two threads at once
+//On a thread of its own the transfer reads the first window itself, and if a block isn't ready yet when it wants it
+//just waits for it, which is no worse than reading it itself. On an event loop nothing may wait on the disk, one slow
+//read would hold up every transfer on the loop. There every read goes through the disk reader, a block that isn't
+//ready yet comes back as NOT_READY, and onBlockReady is called (on the disk reader) once it is
+public class ReadAhead {
+
+    //What take returns when the block is still being read
+    public static final int NOT_READY = -1;
+
+    public interface BlockReader{
+        //Copies the block into the buffer at its position (moving it along) and returns its length
+        //Errors are the reader's problem, a block that can't be read just comes back short
+        int read(long blockIndex, ByteBuffer buffer);
+    }
+
+    //Shared by every transfer, each transfer always goes to the same one so its file is only read from one thread
+    private static final ExecutorService[] DISK_READERS = new ExecutorService[2];
+    private static final AtomicInteger nextDiskReader = new AtomicInteger();
+
+    static
+    {
+        for (int i = 0; i < DISK_READERS.length; i++)
+        {
+            String name = "DiskReader-" + i;
+            DISK_READERS[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+    }
+
+    private final BlockReader reader;
+    private final ExecutorService diskReader;
+    //Blocks past this one are past the end of the file
+    private final long finalBlockIndex;
+
+    //Block i is read into ring[i % ring.length], reads[i % ring.length] completes with its length
+    private final ByteBuffer[] ring;
+    private final List<CompletableFuture<Integer>> reads;
+    //Null if take is allowed to wait
+    private final Runnable onBlockReady;
+    //The block onBlockReady has been asked for, so it is only asked for once per block
+    private long waitingFor = -1;
+    //Every block before this has been taken
+    private long nextToTake;
+    //Every block before this has been handed to the disk reader
+    private long nextToRead;
+    private boolean started;
+
+    public ReadAhead(BlockReader reader, long fileSize, int blockSize, int depth, Runnable onBlockReady)
+    {
+        this.reader = reader;
+        this.onBlockReady = onBlockReady;
+        this.diskReader = DISK_READERS[Math.floorMod(nextDiskReader.getAndIncrement(), DISK_READERS.length)];
+        //A file that is an exact number of blocks long ends with an empty block
+        this.finalBlockIndex = fileSize / blockSize;
+        this.ring = new ByteBuffer[depth];
+        this.reads = new ArrayList<>(Collections.nCopies(depth, null));
+        for (int i = 0; i < depth; i++)
+        {
+            ring[i] = PacketBufferPool.SHARED.acquire(blockSize);
+        }
+    }
+
+    //Blocks have to be taken in order, each one once (a NOT_READY block is taken again later)
+    public int take(long blockIndex, ByteBuffer buffer)
+    {
+        if (blockIndex >= nextToRead && onBlockReady != null)
+        {
+            //Never read on the caller's thread, start reading the whole ring from here and wait to be told
+            readUpTo(blockIndex + ring.length);
+            //Past the end of the file as it was when the transfer started
+            if (blockIndex >= nextToRead) return 0;
+        }
+        else if (blockIndex >= nextToRead)
+        {
+            //Read ahead hasn't got this far (or hasn't started), read it now
+            int length;
+            if (started)
+            {
+                length = CompletableFuture.supplyAsync(() -> reader.read(blockIndex, buffer), diskReader).join();
+            }
+            else
+            {
+                length = reader.read(blockIndex, buffer);
+            }
+            nextToTake = blockIndex + 1;
+            nextToRead = nextToTake;
+            return length;
+        }
+
+        int slot = (int)(blockIndex % ring.length);
+        CompletableFuture<Integer> read = reads.get(slot);
+        if (onBlockReady != null && !read.isDone())
+        {
+            if (waitingFor != blockIndex)
+            {
+                waitingFor = blockIndex;
+                read.whenComplete((length, error) -> onBlockReady.run());
+            }
+            return NOT_READY;
+        }
+
+        int length;
+        try
+        {
+            length = read.join();
+        }
+        catch (CompletionException e)
+        {
+            length = 0;
+        }
+        reads.set(slot, null);
+
+        ByteBuffer block = ring[slot];
+        buffer.put(buffer.position(), block, 0, length);
+        buffer.position(buffer.position() + length);
+        nextToTake = blockIndex + 1;
+        return length;
+    }
+
+    //Starts reading every block up to (but not including) endBlockIndex that isn't already being read
+    //Never more than the ring holds past the next block to be taken
+    public void readUpTo(long endBlockIndex)
+    {
+        long end = Math.min(Math.min(endBlockIndex, nextToTake + ring.length), finalBlockIndex + 1);
+        while (nextToRead < end)
+        {
+            long blockIndex = nextToRead;
+            int slot = (int)(blockIndex % ring.length);
+            ByteBuffer block = ring[slot];
+            reads.set(slot, CompletableFuture.supplyAsync(() -> {
+                block.clear();
+                return reader.read(blockIndex, block);
+            }, diskReader));
+            started = true;
+            nextToRead++;
+        }
+    }
+
+    //Runs after any reads still in flight, then hands the ring back to the pool
+    //onClosed is for closing the file, which mustn't happen while the disk reader might still be using it
+    public void close(Runnable onClosed)
+    {
+        Runnable closing = () -> {
+            for (ByteBuffer block : ring)
+            {
+                PacketBufferPool.SHARED.release(block);
+            }
+            onClosed.run();
+        };
+
+        if (started)
+        {
+            diskReader.execute(closing);
+        }
+        else
+        {
+            closing.run();
+        }
+    }
+}
@@ -0,0 +1,64 @@
+//Works out how long to wait for a reply before sending our last packet(s) again
+//Rather than a fixed timeout we keep a smoothed round trip time and how much it varies (Jacobson/Karels, as in RFC 6298)
+//so a fast LAN gets short timeouts and a slow, jittery link gets long ones
+//Round trips are only measured for packets that were sent once (Karn's rule), if a packet was resent we can't tell which
+//copy the reply was for. Each timeout doubles the wait, and after MAX_RETRIES timeouts in a row we give up on the peer
+public class RetransmissionTimer {
+
+    public static final int MAX_RETRIES = 8;
+
+    //We only have millisecond clocks, so the floor stops a run of 0ms samples on loopback from making us resend
+    //things that are simply still on their way
+    private static final long MIN_TIMEOUT = 50;
+    private static final long MAX_TIMEOUT = 10000;
+
+    //Both in ms, negative until we have our first sample
+    private double smoothedRoundTrip = -1;
+    private double roundTripVariation;
+    private long timeout;
+    //Timeouts since we last heard anything useful from the peer
+    private int retries;
+
+    public RetransmissionTimer(long initialTimeout)
+    {
+        this.timeout = initialTimeout;
+    }
+
+    public long getTimeout()
+    {
+        return timeout;
+    }
+
+    //Called with the time between sending a packet (that was only sent once) and getting its reply
+    public void onRoundTrip(long sample)
+    {
+        if (smoothedRoundTrip < 0)
+        {
+            smoothedRoundTrip = sample;
+            roundTripVariation = sample / 2.0;
+        }
+        else
+        {
+            roundTripVariation = 0.75 * roundTripVariation + 0.25 * Math.abs(smoothedRoundTrip - sample);
+            smoothedRoundTrip = 0.875 * smoothedRoundTrip + 0.125 * sample;
+        }
+
+        //A fresh sample also undoes any backing off
+        timeout = Math.min(MAX_TIMEOUT, Math.max(MIN_TIMEOUT, Math.round(smoothedRoundTrip + 4 * roundTripVariation)));
+        retries = 0;
+    }
+
+    //Called when the peer has moved the transfer on but we couldn't take a sample from it
+    public void onProgress()
+    {
+        retries = 0;
+    }
+
+    //Called when we have waited the whole timeout, backs off and returns false once it is time to give up
+    public boolean onTimeout()
+    {
+        retries++;
+        timeout = Math.min(MAX_TIMEOUT, timeout * 2);
+        return retries <= MAX_RETRIES;
+    }
+}
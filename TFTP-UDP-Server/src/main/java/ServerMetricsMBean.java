@@ -0,0 +1,29 @@
+//What ServerMetrics shows over JMX (e.g. in JConsole under tftp:type=UDPServer)
+//Counters only ever go up, a rate is the difference between two reads over the time between them
+public interface ServerMetricsMBean {
+
+    long getActiveTransfers();
+    long getTransfersStarted();
+    long getTransfersSucceeded();
+    long getTransfersFailed();
+
+    long getRequestsReceived();
+    long getRequestsRejected();
+    long getKernelDroppedRequests();
+
+    long getDataBytesSent();
+    long getDataBytesReceived();
+    long getRetransmits();
+    long getTimeouts();
+
+    //Indexed by error code (0-7 are the codes from the specification, 8 is anything else)
+    long[] getErrorPacketsSent();
+    long[] getErrorPacketsReceived();
+
+    //Percentiles are the upper bound of the histogram bucket they fall in
+    double getFirstByteMillisMean();
+    double getFirstByteMillisP99();
+    double getTransferDurationMillisMean();
+    double getTransferDurationMillisP99();
+    double getRetransmitsPerTransferMean();
+}
@@ -0,0 +1,72 @@
+import java.io.IOException;
+import java.net.DatagramSocket;
+import java.net.StandardSocketOptions;
+import java.nio.channels.DatagramChannel;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+//Kernel buffer sizes (SO_RCVBUF and SO_SNDBUF) for the request sockets and every transfer's socket
+//A datagram that arrives to a full receive buffer, or is sent into a full send buffer on a non-blocking channel, is
+//simply dropped, and the client only finds out when it times out. The OS defaults are fine for stop-and-wait but a
+//window of big blocks goes past them in one burst
+//Left at the OS defaults unless the server is started with --rcvbuf/--sndbuf, except that a READ transfer's send buffer
+//is always made big enough for a whole window (which is never more than the window budget, see TFTPTransfer)
+public class SocketBufferSizes {
+
+    //In bytes, 0 leaves the OS default
+    private static int receiveBufferSize;
+    private static int sendBufferSize;
+    //The kernel quietly caps both at net.core.rmem_max/wmem_max, we only say so once
+    private static final AtomicBoolean reportedCap = new AtomicBoolean();
+
+    public static void set(int receiveBufferSize, int sendBufferSize)
+    {
+        SocketBufferSizes.receiveBufferSize = receiveBufferSize;
+        SocketBufferSizes.sendBufferSize = sendBufferSize;
+    }
+
+    //The request sockets only ever receive, so only their receive buffer matters
+    //This is what holds a burst of requests while the listeners catch up
+    public static void applyToRequestSocket(DatagramSocket socket) throws IOException
+    {
+        if (receiveBufferSize > 0)
+        {
+            socket.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            checkCap("SO_RCVBUF", socket.getOption(StandardSocketOptions.SO_RCVBUF), receiveBufferSize, "rmem_max");
+        }
+    }
+
+    //Best effort, a transfer still works (just with more retries) if we can't get the sizes we want
+    public static void applyToTransfer(DatagramChannel channel, TFTPTransfer transfer)
+    {
+        try
+        {
+            if (receiveBufferSize > 0)
+            {
+                channel.setOption(StandardSocketOptions.SO_RCVBUF, receiveBufferSize);
+            }
+
+            //The burst is already capped, but this is a kernel buffer per transfer so it is capped here too
+            int wantedSendBufferSize = Math.max(sendBufferSize, Math.min(transfer.getBurstSize(), TFTPTransfer.getWindowBudget()));
+            //Linux reports double what was asked for (the other half is its own bookkeeping), so this only
+            //ever raises the buffer
+            if (wantedSendBufferSize > channel.getOption(StandardSocketOptions.SO_SNDBUF))
+            {
+                channel.setOption(StandardSocketOptions.SO_SNDBUF, wantedSendBufferSize);
+                checkCap("SO_SNDBUF", channel.getOption(StandardSocketOptions.SO_SNDBUF), wantedSendBufferSize, "wmem_max");
+            }
+        }
+        catch (IOException e)
+        {
+            System.err.println(e);
+        }
+    }
+
+    private static void checkCap(String option, int actualSize, int wantedSize, String limitName)
+    {
+        if (actualSize < wantedSize && reportedCap.compareAndSet(false, true))
+        {
+            System.out.println(option + " of " + wantedSize + " bytes was capped at " + actualSize
+                    + " by the kernel, raise net.core." + limitName + " to allow more");
+        }
+    }
+}
@@ -1,362 +1,227 @@
 import java.io.*;
 import java.net.*;
-import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Scanner;
-
-public class TFTPConnection extends Thread{
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.util.Map;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.ReentrantLock;
+
+//Drives one TFTPTransfer with blocking socket calls
+//Runnable rather than a Thread so the server can run it on either a platform or a virtual thread
+//We block on a DatagramChannel rather than a DatagramSocket, DatagramSocket.receive holds a monitor while it waits
+//which pins a virtual thread to its carrier. Channels have no receive timeout though, so retry deadlines are handled by
+//a shared timer thread instead, and the transfer is locked (with a ReentrantLock, for the same pinning reason) while either
+//side is using it
+public class TFTPConnection implements Runnable{
 
     public enum ConnectionType{
         READ,
         WRITE
     }
-    private ConnectionType type;
-    private InetAddress clientAddress;
-    private int clientPort;
-    protected DatagramSocket connectionSocket = null;
-
-    //Target file is either the destination file (in the write case) or the file being read (in the read case)
-    private String targetFilename;
-    private File targetFile;
-    private InputStream fileInputStream;
-    private OutputStream fileOutputStream;
-    private boolean throwError;
-    private int errorCode;
-
-    public TFTPConnection(ConnectionType type, InetAddress clientAddress, int clientPort, int newSocketNumber, String targetFilename) throws SocketException {
-        this.type = type;
-        this.clientAddress = clientAddress;
-        this.clientPort = clientPort;
-        this.connectionSocket = new DatagramSocket(newSocketNumber);
-        //Auto close socket and file input stream on terminal close
-        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
-            connectionSocket.close();
-            try {
-                fileInputStream.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            }
-        }));
-
-        this.targetFilename = targetFilename;
-        this.targetFile = new File(this.targetFilename);
 
-        //Load
-        throwError = false;
-
-        if (type == ConnectionType.READ)
+    //One thread is plenty, all it does is resend the odd packet
+    private static final ScheduledExecutorService retryTimer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+        Thread timerThread = new Thread(runnable, "TFTP-Retry-Timer");
+        timerThread.setDaemon(true);
+        return timerThread;
+    });
+
+    protected DatagramChannel connectionChannel = null;
+
+    //Everything protocol related lives in the transfer, this thread just feeds it packets and timeouts
+    private final TFTPTransfer transfer;
+    private final ReentrantLock transferLock = new ReentrantLock();
+    private final Thread shutdownHook;
+    private final PortAllocator portAllocator;
+    private final int localPort;
+
+    public TFTPConnection(ConnectionType type, InetAddress clientAddress, int clientPort, PortAllocator portAllocator, String targetFilename, Map<String, String> requestOptions) throws IOException {
+        this.portAllocator = portAllocator;
+        this.connectionChannel = DatagramChannel.open();
+        int boundPort = -1;
+        try
         {
-            try
-            {
-                fileInputStream = new FileInputStream(targetFile);
-            }
-            catch (FileNotFoundException e)
-            {
-                //This happens if we can't read the file, we should notify
-                //the client with an error packet
-                throwError = true;
-                errorCode = 1;
-            }
+            boundPort = portAllocator.bind(connectionChannel);
+            //Once connected only the client's packets reach us, and we can use read and write which (unlike receive and send)
+            //don't need a new socket address for every packet
+            this.connectionChannel.connect(new InetSocketAddress(clientAddress, clientPort));
         }
-        else
+        catch (IOException e)
         {
-            try {
-                //If the file doesn't exist create it
-                this.targetFile.createNewFile();
-
-                fileOutputStream = new FileOutputStream(targetFile);
-
-            } catch (IOException e) {
-                //This happens if we can't create/access the file
-                //We should notify the client with an error packet
-                throwError = true;
-                errorCode = 2;
-            }
+            connectionChannel.close();
+            portAllocator.release(boundPort);
+            throw e;
         }
+        this.localPort = boundPort;
+        this.transfer = new TFTPTransfer(type, clientAddress, clientPort, targetFilename, requestOptions);
+        SocketBufferSizes.applyToTransfer(connectionChannel, transfer);
+        //Auto close socket and file streams on terminal close
+        //The hook is removed again once we are done, otherwise every transfer the server ever ran would be kept alive by it
+        shutdownHook = new Thread(() -> {
+            closeChannel();
+            transfer.finish();
+        });
+        Runtime.getRuntime().addShutdownHook(shutdownHook);
     }
 
     @Override
     public void run() {
-        System.out.println(type + " Command Issued");
-        final int blockSize = 512;
-        int blockNumber = 0;
-        //In read case we need to immediately send the first block of data and then wait for acknowledgement from the client
-        //In the write case we need to send a 0th block acknowledgement packet and wait for the first set of data, we need to do this so the client knows our TID
-        //without it, the client can't send the data
-        if (type == ConnectionType.READ)
+        //Reused for every packet of the transfer, then handed on to the next one
+        ByteBuffer receiveBuffer = PacketBufferPool.SHARED.acquire(transfer.getMaxPacketSize());
+
+        try
         {
-            byte[] bufferToSend = new byte[blockSize + 4];
-            byte[] acknowledgementBuffer = new byte[4];
-            //Setup initial buffer data
-            //OPCODE
-            bufferToSend[0] = 0;
-            bufferToSend[1] = 3;
-            //We use a boolean instead of a while(true) and break as I feel it is more descriptive
-            boolean lastDataSent = false;
-            //run loop until all data has been sent
-            //we can tell all data has been sent cause the final block will be less than 512 bytes
-            while (!lastDataSent)
+            transferLock.lock();
+            try
             {
-                int bufferIndex = 4;
-                if (!throwError)
-                {
-                    //Update buffer
-                    //We use a FileInputStream to simply read the next byte of the target file
-                    //We do this until either the file is empty or the packet is full
-                    //Block # (initially 0)
-                    blockNumber++;
-                    //We perform some basic bitwise operations to split this across two bytes
-                    //We don't do this for the opcode because it is constant
-                    bufferToSend[2] = (byte)((blockNumber >> 8) & 0xFF);
-                    bufferToSend[3] = (byte)(blockNumber & 0xFF);
-
-                    while (bufferIndex < blockSize + 4)
-                    {
-                        try {
-                            int nextByte = fileInputStream.read();
+                transfer.start(this::sendToClient, System.currentTimeMillis());
+            }
+            finally
+            {
+                transferLock.unlock();
+            }
+            scheduleRetry();
 
-                            if (nextByte == -1)
-                            {
-                                lastDataSent = true;
-                                break;
-                            }
-                            else
-                            {
-                                bufferToSend[bufferIndex] = (byte)nextByte;
-                            }
-                        } catch (IOException e) {
-                            lastDataSent = true;
-                            break;
-                        }
-                        bufferIndex++;
-                    }
+            //Keep waiting for packets until the transfer is done
+            //If it finishes from the timer side while we are waiting the channel is closed, which wakes us up
+            while (!isTransferFinished())
+            {
+                //The pooled buffer may be bigger than we asked for, anything past the biggest packet allowed is cut off
+                receiveBuffer.clear().limit(transfer.getMaxPacketSize());
+                try
+                {
+                    connectionChannel.read(receiveBuffer);
                 }
-                else
+                catch (PortUnreachableException e)
                 {
-                    bufferToSend[1] = 5; //Error opcode
-                    bufferToSend[3] = (byte)errorCode;
-                    //Then we want to end the operation after we have sent the error packet
-                    //We can do this by saying this error packet is the last data
-                    lastDataSent = true;
-                    System.out.println("File could not be read from!");
+                    //Nothing was listening on the client's port when we last sent to it
+                    //Treated like any other lost packet, if it doesn't come back the retries give up on it
+                    continue;
                 }
+                receiveBuffer.flip();
 
-                //Send packet
-                DatagramPacket dataPacket = new DatagramPacket(bufferToSend, bufferIndex);
-
-                dataPacket.setAddress(clientAddress);
-                dataPacket.setPort(clientPort);
-
-                //Create acknowledgement packet receiver
-                DatagramPacket acknowledgementPacket = new DatagramPacket(acknowledgementBuffer, 4);
-
-                //Wait for acknowledgement
-                //If we don't receive acknowledgement then we simply retry sending the data every second
-                boolean acknowledgementReceived = false;
-                while (!acknowledgementReceived)
+                transferLock.lock();
+                try
                 {
-                    try
-                    {
-                        connectionSocket.send(dataPacket);
-                        if (lastDataSent)
-                        {
-                            //Break early if it is the last data to be sent
-                            break;
-                        }
-
-                        try
-                        {
-                            //1 second long time out
-                            connectionSocket.setSoTimeout(1000);
-                            connectionSocket.receive(acknowledgementPacket);
-
-                            byte[] acknowledgementData = acknowledgementPacket.getData();
-                            if (acknowledgementData[1] == 4 && acknowledgementPacket.getPort() == clientPort) //Proper opcode
-                            {
-                                //This is the inversion of the simple bitwise operations we performed earlier
-                                int sentBlockNumber = ((acknowledgementData[2] & 0xff) << 8) | (acknowledgementData[3] & 0xff);
-
-                                //Do the block numbers match?
-                                //If they don't this packet is assumed to be sent from somewhere irrelevant
-                                if (sentBlockNumber == blockNumber)
-                                {
-                                    acknowledgementReceived = true;
-                                }
-                            }
-
-                        }
-                        catch (SocketTimeoutException e)
-                        {
-                            System.out.println(e);
-                        }
-                    }
-                    catch (IOException e)
-                    {
-                        throw new RuntimeException(e);
-                    }
+                    transfer.onPacket(receiveBuffer, System.currentTimeMillis());
                 }
-            }
-
-            try {
-                fileInputStream.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } catch (NullPointerException e){
-                //Throw error refers to the error packet, this check is to see if this null pointer exception was expected
-                if (!throwError)
+                finally
                 {
-                    throw new RuntimeException(e);
+                    transferLock.unlock();
                 }
             }
         }
-        else if (type == ConnectionType.WRITE)
+        catch (ClosedChannelException ignored)
         {
-            //THIS CODE IS ESSENTIALLY JUST THE CLIENT CODE FOR READ
-            boolean lastDataReceived = false;
-
-            //op code, then block number. Each 2 bytes
-            byte[] returnBuffer = new byte[4];
-            returnBuffer[0] = 0;
-            returnBuffer[1] = 4;
-            DatagramPacket acknowledgementAndErrorPacket = new DatagramPacket(returnBuffer, 4);
-            acknowledgementAndErrorPacket.setAddress(clientAddress);
-            acknowledgementAndErrorPacket.setPort(clientPort);
-
-            //Run loop until last block of data has been sent
-            //This is signified by the last block of data being a shorter
-            //length than expected
-            while (!lastDataReceived)
+            //Closed by the retry timer or the shutdown hook
+        }
+        catch (IOException e)
+        {
+            throw new RuntimeException(e);
+        }
+        finally
+        {
+            //The retry timer may still be using the transfer's buffers, so wait for it before they go back to the pool
+            transferLock.lock();
+            try
             {
-                boolean correctDataBlock = false; //We have not found the next valid data block
-
-                //first opcode and block number, then rest of the block
-                //Reset buffer each loop otherwise we cannot detect if last block
-                //has been sent
-                byte[] receiverBuffer = new byte[blockSize+4];
-                //Create new packet with reset buffer
-                DatagramPacket receiverPacket = new DatagramPacket(receiverBuffer, receiverBuffer.length);
-
-                while (!correctDataBlock)
-                {
-                    //First send acknowledgement packet
-                    //This is at the start of the loop so it can be repeated before we check the transmitted data
-                    //again
-                    //On the first iteration this will be the special 0th packet to signify to the client their
-                    //request has been accepted
-                    //Modify ack buffer
-                    //Convert single int "blockNumber" into 2 bytes using binary operations
-                    returnBuffer[2] = (byte)((blockNumber >> 8) & 0xFF);
-                    returnBuffer[3] = (byte)(blockNumber & 0xFF);
-
-                    if (throwError)
-                    {
-                        returnBuffer[1] = 5; //Error opcode
-                        returnBuffer[3] = (byte)errorCode;//Error code
-                        //Quit early after error has been thrown
-                        lastDataReceived = true;
-                        System.out.println("File could not be written to!");
-                    }
-
-                    acknowledgementAndErrorPacket.setData(returnBuffer);
-
-                    try {
-                        connectionSocket.send(acknowledgementAndErrorPacket);
-                    } catch (IOException e) {
-                        throw new RuntimeException(e);
-                    }
-
-                    if (throwError) break;
-
-                    try
-                    {
-                        connectionSocket.setSoTimeout(2000);
-                        connectionSocket.receive(receiverPacket);
+                transfer.finish();
+            }
+            finally
+            {
+                transferLock.unlock();
+            }
+            PacketBufferPool.SHARED.release(receiveBuffer);
 
-                        //Validation Checks to see if this is the correct packet
-                        byte[] blockData = receiverPacket.getData();
+            //Immediately close for testing reason
+            closeChannel();
+            //Only once the channel is closed, otherwise the next transfer given the port couldn't bind it
+            portAllocator.release(localPort);
+        }
 
-                        int sentBlockNumber = ((blockData[2] & 0xff) << 8) | (blockData[3] & 0xff);
+        try {
+            Runtime.getRuntime().removeShutdownHook(shutdownHook);
+        } catch (IllegalStateException ignored) {
+            //Already shutting down, the hook is running or about to
+        }
+    }
 
-                        //We add 1 to the block number as we can't increase block number until the correct packet
-                        //has been received. This is because we might the ack packet again
-                        if (blockData[1] == 3 && sentBlockNumber == blockNumber+1 && receiverPacket.getPort() == clientPort)
-                        {
-                            correctDataBlock = true;
+    private void sendToClient(ByteBuffer packet) throws IOException
+    {
+        try
+        {
+            connectionChannel.write(packet);
+        }
+        catch (PortUnreachableException ignored)
+        {
+            //Left over from an earlier send, the packet is dropped and the retries take care of it
+        }
+    }
 
-                            if (blockData[blockSize+3] == 0)
-                            {
-                                lastDataReceived = true;
-                            }
-                            else
-                            {
-                                blockNumber++;
-                            }
+    private boolean isTransferFinished()
+    {
+        transferLock.lock();
+        try
+        {
+            return transfer.isFinished();
+        }
+        finally
+        {
+            transferLock.unlock();
+        }
+    }
 
-                            //Need to actually write the data
-                            //Need to remove ending blank spaces if this was the last data received
-                            //Otherwise they will also be written to the file
-                            int lengthOfActualData = blockSize;
+    private void scheduleRetry()
+    {
+        long delay = Math.max(0, transfer.getRetryDeadline() - System.currentTimeMillis());
+        retryTimer.schedule(this::onRetryDeadline, delay, TimeUnit.MILLISECONDS);
+    }
 
-                            if (lastDataReceived)
-                            {
-                                //Accounting for the discrepancy between blockSize and length of the data
-                                //caused by opcode and block #
-                                lengthOfActualData += 2;
-                                for (int i = blockSize+3; i >= 0; i--)
-                                {
-                                    if (blockData[i] == 0)
-                                    {
-                                        lengthOfActualData--;
-                                    }
-                                }
-                            }
+    private void onRetryDeadline()
+    {
+        //Only one retry is ever pending, progress just pushes the deadline back so if we are early we go back to sleep
+        transferLock.lock();
+        try
+        {
+            if (transfer.isFinished()) return;
 
-                            fileOutputStream.write(blockData, 4, lengthOfActualData);
-                        }
-                    }
-                    catch (SocketException e)
-                    {
-                        System.out.println(e);
-                    }
-                    catch (IOException e)
-                    {
-                        throw new RuntimeException(e);
-                    }
-                    catch (NullPointerException e){
-                        //Throw error refers to the error packet, this check is to see if this null pointer exception was expected
-                        if (!throwError)
-                        {
-                            throw new RuntimeException(e);
-                        }
-                    }
-                }
+            long now = System.currentTimeMillis();
+            if (transfer.getRetryDeadline() <= now)
+            {
+                //Counted in ServerMetrics rather than printed, under load there can be thousands of these a second
+                transfer.onTimeout(now);
             }
 
-            try {
-                fileOutputStream.close();
-            } catch (IOException e) {
-                throw new RuntimeException(e);
-            } catch (NullPointerException e){
-                //Throw error refers to the error packet, this check is to see if this null pointer exception was expected
-                if (!throwError)
-                {
-                    throw new RuntimeException(e);
-                }
+            if (transfer.isFinished())
+            {
+                closeChannel();
+            }
+            else
+            {
+                scheduleRetry();
             }
         }
-
-        String outputEnding;
-        if (throwError)
+        catch (IOException e)
         {
-            outputEnding = ") terminated with error!";
+            System.err.println(e);
+            transfer.finish();
+            closeChannel();
         }
-        else
+        finally
         {
-            outputEnding = ") terminated successfully!";
+            transferLock.unlock();
         }
+    }
 
-        System.out.println(getName() + " (PORT: " + connectionSocket.getLocalPort() + outputEnding);
-        //Immediately close for testing reason
-        connectionSocket.close();
+    private void closeChannel()
+    {
+        try {
+            connectionChannel.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
     }
 }
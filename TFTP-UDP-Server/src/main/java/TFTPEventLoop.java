@@ -0,0 +1,258 @@
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.PortUnreachableException;
+import java.nio.ByteBuffer;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.DatagramChannel;
+import java.nio.channels.SelectionKey;
+import java.nio.channels.Selector;
+import java.util.Iterator;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+
+//Runs any number of transfers on one thread
+//Each transfer gets its own non-blocking DatagramChannel (so it still has its own TID) registered with our selector,
+//retry deadlines are kept in a TimerWheel rather than in socket timeouts
+public class TFTPEventLoop extends Thread{
+
+    //Most packets we take off one socket per wakeup, so one transfer with a burst queued up can't hold up the rest
+    //Whatever is left is still there (and the socket still readable) on the next select
+    private static final int MAX_PACKETS_PER_WAKEUP = 64;
+
+    private static class PendingTransfer{
+        final DatagramChannel channel;
+        final TFTPTransfer transfer;
+
+        PendingTransfer(DatagramChannel channel, TFTPTransfer transfer)
+        {
+            this.channel = channel;
+            this.transfer = transfer;
+        }
+    }
+
+    private final Selector selector;
+    private final TimerWheel<SelectionKey> timerWheel;
+    //Where each transfer's port goes back to once it is closed
+    private final PortAllocator portAllocator;
+    //New transfers are handed over from the server thread, we register them ourselves as register() blocks while
+    //we are inside select()
+    private final Queue<PendingTransfer> pendingTransfers = new ConcurrentLinkedQueue<>();
+    //Transfers whose read ahead has caught up with them since they last had to stop filling their window
+    //Added to by the disk readers, so nothing on this thread ever waits on the disk (see ReadAhead)
+    private final Queue<SelectionKey> readyTransfers = new ConcurrentLinkedQueue<>();
+    //Only one packet is being handled at a time so every transfer on this loop can share the receive buffer
+    //Direct, so the channel reads straight into it rather than into a temporary buffer that is then copied
+    private final ByteBuffer receiveBuffer = ByteBuffer.allocateDirect(TFTPTransfer.MAX_BLOCK_SIZE + 4);
+
+    public TFTPEventLoop(String name, PortAllocator portAllocator) throws IOException
+    {
+        super(name);
+        this.portAllocator = portAllocator;
+        this.selector = Selector.open();
+        //10ms slots, one turn of the wheel is a bit over 5 seconds
+        this.timerWheel = new TimerWheel<>(10, 512, System.currentTimeMillis());
+    }
+
+    //Called from the server thread
+    public void register(DatagramChannel channel, TFTPTransfer transfer)
+    {
+        pendingTransfers.add(new PendingTransfer(channel, transfer));
+        selector.wakeup();
+    }
+
+    @Override
+    public void run() {
+        //Run forever (i.e. until terminal is closed)
+        while (true)
+        {
+            try
+            {
+                selector.select(timerWheel.millisUntilNextTick(System.currentTimeMillis()));
+            }
+            catch (IOException e)
+            {
+                System.err.println(e);
+                return;
+            }
+
+            startPendingTransfers();
+            resumeReadyTransfers();
+
+            Iterator<SelectionKey> selectedKeys = selector.selectedKeys().iterator();
+            while (selectedKeys.hasNext())
+            {
+                SelectionKey key = selectedKeys.next();
+                selectedKeys.remove();
+
+                if (key.isValid() && key.isReadable())
+                {
+                    receivePackets(key);
+                }
+            }
+
+            timerWheel.advance(System.currentTimeMillis(), this::onRetryDeadline);
+        }
+    }
+
+    private void startPendingTransfers()
+    {
+        PendingTransfer pending;
+        while ((pending = pendingTransfers.poll()) != null)
+        {
+            DatagramChannel channel = pending.channel;
+            TFTPTransfer transfer = pending.transfer;
+
+            try
+            {
+                //Once connected only the client's packets reach us, and we can use read and write which (unlike receive and send)
+                //don't need a new socket address for every packet
+                channel.connect(new InetSocketAddress(transfer.getClientAddress(), transfer.getClientPort()));
+                SelectionKey key = channel.register(selector, SelectionKey.OP_READ, transfer);
+                //If the socket buffer is full the datagram is dropped, which the retries take care of like any other lost packet
+                transfer.start(packet -> sendToClient(channel, packet), () -> {
+                    readyTransfers.add(key);
+                    selector.wakeup();
+                }, System.currentTimeMillis());
+                afterEvent(key, transfer);
+            }
+            catch (IOException e)
+            {
+                System.err.println(e);
+                closeTransfer(channel.keyFor(selector), channel, transfer);
+            }
+        }
+    }
+
+    private void resumeReadyTransfers()
+    {
+        SelectionKey key;
+        while ((key = readyTransfers.poll()) != null)
+        {
+            //The transfer may have finished (and its key been cancelled) while the block was being read
+            if (!key.isValid()) continue;
+            TFTPTransfer transfer = (TFTPTransfer)key.attachment();
+
+            try
+            {
+                transfer.onBlocksReady(System.currentTimeMillis());
+                afterEvent(key, transfer);
+            }
+            catch (IOException e)
+            {
+                System.err.println(e);
+                closeTransfer(key, (DatagramChannel)key.channel(), transfer);
+            }
+        }
+    }
+
+    private void receivePackets(SelectionKey key)
+    {
+        DatagramChannel channel = (DatagramChannel)key.channel();
+        TFTPTransfer transfer = (TFTPTransfer)key.attachment();
+
+        try
+        {
+            //Handle everything that has queued up on this socket, not just the first packet
+            for (int packets = 0; packets < MAX_PACKETS_PER_WAKEUP && !transfer.isFinished(); packets++)
+            {
+                //Anything past the biggest packet this transfer allows is cut off
+                receiveBuffer.clear().limit(transfer.getMaxPacketSize());
+                int received;
+                try
+                {
+                    received = channel.read(receiveBuffer);
+                }
+                catch (PortUnreachableException e)
+                {
+                    //Nothing was listening on the client's port when we last sent to it
+                    //Treated like any other lost packet, if it doesn't come back the retries give up on it
+                    continue;
+                }
+                if (received <= 0) break;
+
+                receiveBuffer.flip();
+                transfer.onPacket(receiveBuffer, System.currentTimeMillis());
+            }
+            afterEvent(key, transfer);
+        }
+        catch (IOException e)
+        {
+            System.err.println(e);
+            closeTransfer(key, channel, transfer);
+        }
+    }
+
+    private static void sendToClient(DatagramChannel channel, ByteBuffer packet) throws IOException
+    {
+        try
+        {
+            channel.write(packet);
+        }
+        catch (PortUnreachableException ignored)
+        {
+            //Left over from an earlier send, the packet is dropped and the retries take care of it
+        }
+    }
+
+    private void onRetryDeadline(SelectionKey key)
+    {
+        //The transfer may have finished (and its key been cancelled) since this timer was set
+        if (!key.isValid()) return;
+        TFTPTransfer transfer = (TFTPTransfer)key.attachment();
+
+        try
+        {
+            long now = System.currentTimeMillis();
+            if (!transfer.isFinished() && transfer.getRetryDeadline() <= now)
+            {
+                transfer.onTimeout(now);
+            }
+            afterEvent(key, transfer);
+        }
+        catch (IOException e)
+        {
+            System.err.println(e);
+            closeTransfer(key, (DatagramChannel)key.channel(), transfer);
+        }
+    }
+
+    private void afterEvent(SelectionKey key, TFTPTransfer transfer)
+    {
+        if (transfer.isFinished())
+        {
+            closeTransfer(key, (DatagramChannel)key.channel(), transfer);
+        }
+        else
+        {
+            timerWheel.schedule(transfer, key);
+        }
+    }
+
+    private void closeTransfer(SelectionKey key, DatagramChannel channel, TFTPTransfer transfer)
+    {
+        try
+        {
+            transfer.finish();
+        }
+        catch (RuntimeException e)
+        {
+            //Closing the file failed, the transfer is over either way. Letting this out would stop the event loop
+            //and strand every other transfer on it, so just report it and carry on cleaning up
+            System.err.println(e);
+        }
+        if (key != null) key.cancel();
+
+        int localPort = -1;
+        try
+        {
+            localPort = ((InetSocketAddress)channel.getLocalAddress()).getPort();
+            channel.close();
+        }
+        catch (ClosedChannelException ignored) { }
+        catch (IOException e)
+        {
+            System.err.println(e);
+        }
+        portAllocator.release(localPort);
+    }
+}
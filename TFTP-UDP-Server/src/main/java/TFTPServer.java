@@ -1,103 +1,456 @@
 import java.io.IOException;
 import java.net.*;
+import java.nio.channels.DatagramChannel;
 import java.nio.charset.StandardCharsets;
-import java.util.Arrays;
-import java.util.Random;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ThreadFactory;
 
 public class TFTPServer extends Thread{
-    protected DatagramSocket communicationSocket = null;
+
+    //How often the listener stats are printed (only if anything has happened since the last time)
+    private static final long STATS_INTERVAL = 10000;
+
+    //One socket per listener, all bound to the same port
+    protected DatagramSocket[] communicationSockets = null;
     private int portNumber = 20001;
+    private final Listener[] listeners;
+    //Every transfer gets its own port (TID) from here
+    //Lower bound was chosen based on client port bounds
+    private final PortAllocator portAllocator = new PortAllocator(10001, 19999);
+    //Null when every transfer gets its own TFTPConnection thread
+    //Otherwise transfers are handed out to these in turn
+    private final TFTPEventLoop[] eventLoops;
+    //Used to start each TFTPConnection, either on a platform thread or a virtual thread
+    //A factory rather than the builder itself as every listener uses it, and builders aren't thread safe
+    private final ThreadFactory connectionThreadFactory;
 
 
     //Constructors
-    public TFTPServer() throws SocketException{
-        this("TFTP-UDP-Server");
+    public TFTPServer() throws IOException{
+        this("TFTP-UDP-Server", 0, false);
     }
 
-    public TFTPServer(String name) throws SocketException{
+    public TFTPServer(String name, int eventLoopCount, boolean useVirtualThreads) throws IOException{
+        this(name, eventLoopCount, useVirtualThreads, 1);
+    }
+
+    public TFTPServer(String name, int eventLoopCount, boolean useVirtualThreads, int listenerCount) throws IOException{
         super(name);
+
+        if (useVirtualThreads)
+        {
+            connectionThreadFactory = Thread.ofVirtual().name("VirtualThread-", 0).factory();
+        }
+        else
+        {
+            connectionThreadFactory = Thread.ofPlatform().factory();
+        }
+
+        if (eventLoopCount > 0)
+        {
+            eventLoops = new TFTPEventLoop[eventLoopCount];
+            for (int i = 0; i < eventLoopCount; i++)
+            {
+                eventLoops[i] = new TFTPEventLoop(name + "-EventLoop-" + i, portAllocator);
+                eventLoops[i].setDaemon(true);
+                eventLoops[i].start();
+            }
+        }
+        else
+        {
+            eventLoops = null;
+        }
+
+        DatagramSocket firstSocket = new DatagramSocket(null);
+        if (listenerCount > 1 && !firstSocket.supportedOptions().contains(StandardSocketOptions.SO_REUSEPORT))
+        {
+            System.out.println("SO_REUSEPORT isn't supported here, using a single listener");
+            listenerCount = 1;
+        }
+
         //Instantiate our new socket, any port above 1024 will work
         //as long as it isn't being used.
         //Client needs to use this port as well
-        communicationSocket = new DatagramSocket(portNumber++);
+        //With more than one listener every socket is bound to the same port with SO_REUSEPORT, the kernel then
+        //shares incoming requests out between them (by the client's address and port, so a client's retries of its
+        //request all go to the same listener)
+        communicationSockets = new DatagramSocket[listenerCount];
+        listeners = new Listener[listenerCount];
+        for (int i = 0; i < listenerCount; i++)
+        {
+            communicationSockets[i] = i == 0 ? firstSocket : new DatagramSocket(null);
+            if (listenerCount > 1)
+            {
+                communicationSockets[i].setOption(StandardSocketOptions.SO_REUSEPORT, true);
+            }
+            SocketBufferSizes.applyToRequestSocket(communicationSockets[i]);
+            communicationSockets[i].bind(new InetSocketAddress(portNumber));
+            listeners[i] = new Listener(i, communicationSockets[i]);
+        }
+        portNumber++;
+
+        ServerMetrics.SHARED.setKernelDrops(this::readKernelDrops);
+        ServerMetrics.SHARED.registerMBean("UDPServer");
 
         Runtime.getRuntime().addShutdownHook(new Thread(() -> {
             //Ensure socket is closed when terminal is closed
             //This means the port will be always free when we run the server again
             //unless it is being used by another process
-            communicationSocket.close();
+            for (DatagramSocket communicationSocket : communicationSockets)
+            {
+                communicationSocket.close();
+            }
         }));
     }
 
     @Override
     public void run() {
+        //Every listener but the first gets a thread of its own, the first runs on this one
+        for (int i = 1; i < listeners.length; i++)
+        {
+            Thread listenerThread = new Thread(listeners[i], getName() + "-Listener-" + i);
+            listenerThread.setDaemon(isDaemon());
+            listenerThread.start();
+        }
 
-        try
-        {
-            //Run forever (i.e. until terminal is closed)
-            while (true)
-            {
-                //Simply wait for a communication from a client
-                //If the communication is a valid request, start transmitting data (actual data or acknowledgement packet) in the connection class
-
-                byte[] reqBuf = new byte[256];
-                DatagramPacket clientPak = new DatagramPacket(reqBuf, 256);
-                communicationSocket.receive(clientPak);
-
-                //Check if we already have a connection open with a client based on the socket address
-                InetAddress clientAddress = clientPak.getAddress();
-                int clientPort = clientPak.getPort();
-
-                //Convert the byte data into a string
-                byte[] requestData = clientPak.getData();
-                //Get the first two bytes as the opcode
-                int opcode = requestData[1];
-                //We just assume the whole rest of the array is the file name, we can do this as we don't care about mode
-                //if we want this implementation to work with other TFTP implementations then we would need to only take the
-                //part of the array up to the next "buffer" byte
-                //This file is either the file being read or the file being written too
-                //i.e. it is the file the server "controls"
-                String targetFilename = new String(Arrays.copyOfRange(requestData, 2, requestData.length), StandardCharsets.UTF_8).trim();
-
-                //Need to open a connection thread
-                //We do this so we can support simultaneous file transfers
-                //A connection thread needs to know the client's TID / address so it can send the initial data
-                //It also needs its own new port / TID
-                //According to specification this should be randomized
-                if (opcode == 1)
-                {
-                    //read
-                    new TFTPConnection(TFTPConnection.ConnectionType.READ, clientAddress, clientPort, generateNewPortNumber(), targetFilename).start();
-                }
-                else if (opcode == 2)
+        Thread statsThread = new Thread(this::reportStats, getName() + "-Stats");
+        statsThread.setDaemon(true);
+        statsThread.start();
+
+        listeners[0].run();
+    }
+
+    //Receives requests on one of the sockets and starts their transfers
+    //Each has its own buffer, packet and turn through the event loops, so listeners never wait on each other
+    private class Listener implements Runnable{
+        final int index;
+        final DatagramSocket communicationSocket;
+        final ServerMetrics.ListenerCounters counters = ServerMetrics.SHARED.addListener();
+        private int nextEventLoop;
+
+        Listener(int index, DatagramSocket communicationSocket)
+        {
+            this.index = index;
+            this.communicationSocket = communicationSocket;
+            //Start each listener on a different event loop, so a burst that lands on all of them at once is spread out
+            this.nextEventLoop = eventLoops == null ? 0 : index % eventLoops.length;
+        }
+
+        @Override
+        public void run() {
+
+            //Every request is parsed into strings before we wait for the next, so one buffer does for all of them
+            byte[] reqBuf = new byte[256];
+            DatagramPacket clientPak = new DatagramPacket(reqBuf, 256);
+
+            try
+            {
+                //Run forever (i.e. until terminal is closed)
+                while (true)
                 {
-                    //write
-                    new TFTPConnection(TFTPConnection.ConnectionType.WRITE, clientAddress, clientPort, generateNewPortNumber(), targetFilename).start();
+                    //Simply wait for a communication from a client
+                    //If the communication is a valid request, start transmitting data (actual data or acknowledgement packet) in the connection class
+
+                    //receive() cuts the length down to whatever the last request was
+                    clientPak.setLength(reqBuf.length);
+                    communicationSocket.receive(clientPak);
+                    counters.requestsReceived.increment();
+
+                    //Check if we already have a connection open with a client based on the socket address
+                    InetAddress clientAddress = clientPak.getAddress();
+                    int clientPort = clientPak.getPort();
+
+                    //Convert the byte data into a string
+                    byte[] requestData = clientPak.getData();
+                    //Get the first two bytes as the opcode
+                    //The buffer is reused, so a packet too short to have one mustn't pick up the last request's
+                    int opcode = clientPak.getLength() >= 2 ? requestData[1] : 0;
+                    //The rest of the request is a list of zero terminated strings
+                    //The first is the filename, the second is the mode (which we don't care about) and anything after that
+                    //are option name/value pairs (RFC 2347)
+                    //This file is either the file being read or the file being written too
+                    //i.e. it is the file the server "controls"
+                    List<String> requestFields = splitRequestFields(requestData, clientPak.getLength());
+                    String targetFilename = requestFields.isEmpty() ? "" : requestFields.get(0).trim();
+                    Map<String, String> requestOptions = new LinkedHashMap<>();
+                    for (int i = 2; i + 1 < requestFields.size(); i += 2)
+                    {
+                        //Option names are case-insensitive
+                        requestOptions.put(requestFields.get(i).toLowerCase(), requestFields.get(i + 1));
+                    }
+
+                    //Need to open a connection thread
+                    //We do this so we can support simultaneous file transfers
+                    //A connection thread needs to know the client's TID / address so it can send the initial data
+                    //It also needs its own new port / TID, which the PortAllocator picks for it
+                    TFTPConnection.ConnectionType type;
+                    if (opcode == 1)
+                    {
+                        //read
+                        type = TFTPConnection.ConnectionType.READ;
+                    }
+                    else if (opcode == 2)
+                    {
+                        //write
+                        type = TFTPConnection.ConnectionType.WRITE;
+                    }
+                    else
+                    {
+                        counters.requestsRejected.increment();
+                        continue;
+                    }
+
+                    try
+                    {
+                        if (eventLoops == null)
+                        {
+                            connectionThreadFactory.newThread(new TFTPConnection(type, clientAddress, clientPort, portAllocator, targetFilename, requestOptions)).start();
+                        }
+                        else
+                        {
+                            startOnEventLoop(type, clientAddress, clientPort, targetFilename, requestOptions);
+                        }
+                    }
+                    catch (IOException e)
+                    {
+                        //Only this request is lost (the client times out and can ask again), we carry on with the rest
+                        counters.requestsRejected.increment();
+                        System.err.println(e);
+                    }
                 }
             }
+            catch (Exception e)
+            {
+                System.err.println(e);
+            }
+
+            communicationSocket.close();
         }
-        catch (Exception e)
+
+        private void startOnEventLoop(TFTPConnection.ConnectionType type, InetAddress clientAddress, int clientPort, String targetFilename, Map<String, String> requestOptions) throws IOException
         {
-            System.err.println(e);
+            //Same as a connection thread, just without the thread
+            DatagramChannel connectionChannel = DatagramChannel.open();
+            int localPort = -1;
+            try
+            {
+                localPort = portAllocator.bind(connectionChannel);
+                connectionChannel.configureBlocking(false);
+            }
+            catch (IOException e)
+            {
+                connectionChannel.close();
+                portAllocator.release(localPort);
+                throw e;
+            }
+
+            TFTPTransfer transfer = new TFTPTransfer(type, clientAddress, clientPort, targetFilename, requestOptions);
+            SocketBufferSizes.applyToTransfer(connectionChannel, transfer);
+            eventLoops[nextEventLoop].register(connectionChannel, transfer);
+            nextEventLoop = (nextEventLoop + 1) % eventLoops.length;
         }
+    }
+
+    private void reportStats()
+    {
+        long[] lastReceived = new long[listeners.length];
+        long[] lastRejected = new long[listeners.length];
+        long lastKernelDrops = readKernelDrops();
+
+        while (true)
+        {
+            try
+            {
+                Thread.sleep(STATS_INTERVAL);
+            }
+            catch (InterruptedException e)
+            {
+                return;
+            }
 
-        communicationSocket.close();
+            //Requests the kernel threw away because a listener's socket buffer was full, they never reached us
+            long kernelDrops = readKernelDrops();
+            long droppedSinceLast = kernelDrops - lastKernelDrops;
+            lastKernelDrops = kernelDrops;
+
+            StringBuilder stats = new StringBuilder();
+            boolean anythingHappened = droppedSinceLast > 0;
+            for (int i = 0; i < listeners.length; i++)
+            {
+                long received = listeners[i].counters.requestsReceived.sum();
+                long rejected = listeners[i].counters.requestsRejected.sum();
+                long receivedSinceLast = received - lastReceived[i];
+                anythingHappened |= receivedSinceLast > 0;
+
+                stats.append("Listener ").append(i).append(": ").append(receivedSinceLast).append(" requests (")
+                        .append(String.format("%.1f", receivedSinceLast * 1000.0 / STATS_INTERVAL)).append("/s), ")
+                        .append(rejected - lastRejected[i]).append(" rejected\n");
+                lastReceived[i] = received;
+                lastRejected[i] = rejected;
+            }
+
+            if (!anythingHappened) continue;
+
+            if (kernelDrops >= 0)
+            {
+                stats.append("Requests dropped by the kernel: ").append(droppedSinceLast).append("\n");
+            }
+            System.out.print(stats);
+        }
+    }
+
+    //Total datagrams the kernel has dropped on the request port (across every listener socket), -1 if we can't tell
+    //Linux only, the count is the last column of /proc/net/udp (and udp6) for each socket
+    private long readKernelDrops()
+    {
+        String portSuffix = String.format(":%04X", portNumber - 1);
+        long drops = 0;
+        boolean found = false;
+
+        for (String table : new String[]{"/proc/net/udp", "/proc/net/udp6"})
+        {
+            try
+            {
+                List<String> lines = Files.readAllLines(Path.of(table));
+                //First line is the column headings
+                for (int i = 1; i < lines.size(); i++)
+                {
+                    String[] columns = lines.get(i).trim().split("\\s+");
+                    if (columns.length > 1 && columns[1].endsWith(portSuffix))
+                    {
+                        drops += Long.parseLong(columns[columns.length - 1]);
+                        found = true;
+                    }
+                }
+            }
+            catch (IOException | NumberFormatException ignored) { }
+        }
+
+        return found ? drops : -1;
     }
 
     public static void main(String[] args) throws IOException {
         //Start the server thread
-        //We use the argumentless constructor
-        new TFTPServer().start();
+        //"--event-loop [N]" runs every transfer on N (default 1) selector threads instead of a thread each
+        //"--virtual-threads" keeps a thread per transfer, but makes them virtual threads
+        //"--block-cache MB" shares file blocks between READ transfers through a cache of up to MB megabytes
+        //(it is off heap, so -XX:MaxDirectMemorySize may need raising to match)
+        //"--listeners N" receives requests on N sockets (and threads) sharing the port through SO_REUSEPORT
+        //"--rcvbuf KB" and "--sndbuf KB" set the kernel socket buffer sizes, for the request sockets and each transfer's socket
+        //"--metrics-port PORT" serves the metrics (see ServerMetrics) as Prometheus text on http://127.0.0.1:PORT/metrics
+        //"--window-budget KB" caps how much buffer a single READ can hold (default 4096), bigger windows are cut down
+        //With read ahead on, half of it is for the window and half for the blocks read ahead
+        //"--no-read-ahead" only reads each window of a READ once the last one has been acknowledged (see ReadAhead)
+        //Ignored with "--event-loop", where reading ahead is what keeps the loop from waiting on the disk
+        //"--transfer-log FILE" writes the line for each finished transfer (see TransferLog) to FILE instead of the console
+        int eventLoopCount = 0;
+        int listenerCount = 1;
+        int receiveBufferSize = 0;
+        int sendBufferSize = 0;
+        int metricsPort = 0;
+        boolean useVirtualThreads = false;
+        boolean readAhead = true;
+        for (int i = 0; i < args.length; i++)
+        {
+            if (args[i].equals("--virtual-threads"))
+            {
+                useVirtualThreads = true;
+            }
+            else if (args[i].equals("--event-loop"))
+            {
+                eventLoopCount = 1;
+                if (i + 1 < args.length && args[i + 1].matches("\\d+"))
+                {
+                    eventLoopCount = Math.max(1, Integer.parseInt(args[++i]));
+                }
+            }
+            else if (args[i].equals("--listeners") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                listenerCount = Math.max(1, Integer.parseInt(args[++i]));
+            }
+            else if (args[i].equals("--rcvbuf") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                receiveBufferSize = Integer.parseInt(args[++i]) * 1024;
+            }
+            else if (args[i].equals("--sndbuf") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                sendBufferSize = Integer.parseInt(args[++i]) * 1024;
+            }
+            else if (args[i].equals("--metrics-port") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                metricsPort = Integer.parseInt(args[++i]);
+            }
+            else if (args[i].equals("--window-budget") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                TFTPTransfer.setWindowBudget((int)Math.min(Integer.MAX_VALUE, Long.parseLong(args[++i]) * 1024));
+            }
+            else if (args[i].equals("--no-read-ahead"))
+            {
+                readAhead = false;
+            }
+            else if (args[i].equals("--transfer-log") && i + 1 < args.length)
+            {
+                TransferLog.SHARED.setFile(Path.of(args[++i]));
+            }
+            else if (args[i].equals("--block-cache") && i + 1 < args.length && args[i + 1].matches("\\d+"))
+            {
+                long cacheMegabytes = Long.parseLong(args[++i]);
+                if (cacheMegabytes > 0)
+                {
+                    TFTPTransfer.setBlockCache(new BlockCache(cacheMegabytes * 1024 * 1024));
+                }
+            }
+        }
+
+        if (!readAhead && eventLoopCount > 0)
+        {
+            System.err.println("--no-read-ahead is ignored with --event-loop, the event loop never reads the disk itself");
+        }
+        else if (!readAhead)
+        {
+            TFTPTransfer.setReadAhead(false);
+        }
+
+        SocketBufferSizes.set(receiveBufferSize, sendBufferSize);
+        new TFTPServer("TFTP-UDP-Server", eventLoopCount, useVirtualThreads, listenerCount).start();
+        if (metricsPort > 0)
+        {
+            ServerMetrics.SHARED.startHttpEndpoint(metricsPort);
+        }
         System.out.println("Server started!");
     }
 
-    private static int generateNewPortNumber()
+    private static List<String> splitRequestFields(byte[] requestData, int requestLength)
     {
-        //Pick random port number across a large amount of values, this almost guarantees that there will be no conflicts between clients
-        //Done as described in the protocol specification
-        //Upper bound of 20k
-        //lower bound of 10.001k
-        //lower bound was chosen based on client port bounds
-        return new Random().nextInt(20000 - 10001) + 10001;
+        //Skip the opcode, then cut the request up at each zero byte
+        //Older clients just pad the filename with zeros, so we stop at the first empty field
+        List<String> fields = new ArrayList<>();
+        int fieldStart = 2;
+        for (int i = 2; i < requestLength; i++)
+        {
+            if (requestData[i] == 0)
+            {
+                if (i == fieldStart)
+                {
+                    return fields;
+                }
+
+                fields.add(new String(requestData, fieldStart, i - fieldStart, StandardCharsets.UTF_8));
+                fieldStart = i + 1;
+            }
+        }
+
+        if (fieldStart < requestLength)
+        {
+            //Unterminated final field
+            fields.add(new String(requestData, fieldStart, requestLength - fieldStart, StandardCharsets.UTF_8));
+        }
+
+        return fields;
     }
 }
@@ -0,0 +1,899 @@
+import java.io.*;
+import java.net.InetAddress;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.StandardOpenOption;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+//The protocol side of a single READ or WRITE transfer
+//This never touches a socket or blocks, whoever drives it (a TFTPConnection thread or a TFTPEventLoop) hands it each
+//packet that arrives and tells it when its retry deadline has passed, and it sends whatever it needs to through the PacketSender
+//Every packet we send is built in a direct buffer taken from the PacketBufferPool when the transfer starts, they all go
+//back when it finishes so nothing is allocated per block
+public class TFTPTransfer {
+
+    public interface PacketSender{
+        //Sends everything between the packet's position and limit
+        void send(ByteBuffer packet) throws IOException;
+    }
+
+    //How long we wait before sending our last packet(s) again, until we have measured the round trip to the client
+    private static final int READ_TIMEOUT = 1000;
+    private static final int WRITE_TIMEOUT = 2000;
+    //How long a finished WRITE waits for the client to resend its final block, then twice that and so on DALLY_TIMEOUTS
+    //times. It starts at no less than the client's timeout before it has measured anything, or ours if that is longer
+    //(a lossy link backs both of us off)
+    private static final int DALLY_FIRST_TIMEOUT = 1000;
+    private static final int DALLY_TIMEOUTS = 3;
+
+    //Largest block that still fits in a single UDP datagram (65535 - 8 byte UDP header - 20 byte IP header - 4 byte TFTP header)
+    public static final int MAX_BLOCK_SIZE = 65464;
+
+    //Shared by every transfer in the process, null unless the server was started with a cache
+    private static BlockCache blockCache;
+    //Read the next window while waiting for the current one to be acknowledged (see ReadAhead)
+    private static boolean readAheadEnabled = true;
+    //Most bytes of buffers a single READ can hold, the window is cut down to fit its block size into this
+    //Without it one request asking for the biggest window of the biggest blocks would tie up gigabytes
+    //With read ahead the ring it reads into (up to a window's worth of blocks) comes out of this too, so then the
+    //window gets half and the ring the other half (see windowShare)
+    private static int windowBudget = 4 * 1024 * 1024;
+
+    private final TFTPConnection.ConnectionType type;
+    private final InetAddress clientAddress;
+    private final int clientPort;
+    private PacketSender sender;
+
+    //Target file is either the destination file (in the write case) or the file being read (in the read case)
+    private final File targetFile;
+    private FileBlockSource fileBlockSource;
+    //Null for files that fit in a single block (or if read ahead is turned off)
+    private ReadAhead readAhead;
+    //Identify this version of the file in the block cache
+    private String canonicalPath;
+    private long lastModified;
+    private WriteBehindFile fileWriter;
+    private boolean throwError;
+    private int errorCode;
+
+    //Number of blocks we are allowed to have in flight before waiting for an acknowledgement (RFC 7440)
+    //1 is plain stop-and-wait
+    private int windowSize = 1;
+    //Bytes of file data per DATA packet, 512 unless the client negotiates something else (RFC 2348)
+    private int blockSize = 512;
+    //Options we have agreed to, these are echoed back to the client in an OACK packet
+    //Empty if the client didn't ask for anything (or we didn't accept anything) in which case no OACK is sent
+    private final Map<String, String> acceptedOptions = new LinkedHashMap<>();
+    //Where in the file block 1 starts. 0 unless the client is picking up a transfer that broke off part way through
+    //(the "offset" option), then only the rest of the file goes over the network
+    private long resumeOffset;
+
+    //Set while we are waiting for the client to confirm our OACK
+    private boolean negotiating;
+    private boolean finished;
+    //Only set once every block has gone through, a transfer finished any other way (e.g. by shutdown) has failed
+    private boolean completed;
+    //A WRITE whose final block is in, waiting in case our acknowledgement of it went missing (see onWritePacket)
+    private boolean dallying;
+    private long dallyTimeout;
+    private int dallyTimeouts;
+    //When the final block last arrived
+    private long finalBlockAt;
+    //Time (in ms) at which we give up waiting and resend
+    private long retryDeadline;
+    private final RetransmissionTimer retransmissionTimer;
+    //Deadline this transfer currently has a timer for, only used by the TimerWheel
+    long scheduledDeadline = -1;
+
+    //For ServerMetrics, we are made as soon as the request arrives
+    private final long requestReceivedAt = System.nanoTime();
+    private boolean firstByteRecorded;
+    private int retransmits;
+    //For the TransferLog, file bytes sent (not counting resends) or written
+    private long fileBytes;
+    //How the transfer ended, if it didn't succeed
+    private String failure;
+
+    //Read state
+    //Each slot holds a whole DATA packet, its limit is the length of the packet
+    private ByteBuffer[] windowBuffers;
+    //Block numbers are tracked as ints here and only cut down to 2 bytes when they go on the wire, so they can wrap
+    private int lastAcknowledgedBlock;
+    private int lastFilledBlock;
+    private int lastSentBlock;
+    //Unknown until we read a block shorter than blockSize
+    private int finalBlock = -1;
+    //When each block in the window was last sent, and whether that was a resend (so no good for timing)
+    private long[] windowSentTimes;
+    private boolean[] windowResent;
+    private int highestSentBlock;
+    private long optionsSentAt;
+    private boolean optionsResent;
+
+    //Write state
+    //Last block we have written to disk (and acknowledged)
+    private int blockNumber;
+    private ByteBuffer returnBuffer;
+    private ByteBuffer optionsBuffer;
+    private ByteBuffer errorBuffer;
+    private long acknowledgementSentAt;
+    private boolean acknowledgementResent;
+
+    public TFTPTransfer(TFTPConnection.ConnectionType type, InetAddress clientAddress, int clientPort, String targetFilename, Map<String, String> requestOptions)
+    {
+        this.type = type;
+        this.clientAddress = clientAddress;
+        this.clientPort = clientPort;
+        this.targetFile = new File(targetFilename);
+        this.retransmissionTimer = new RetransmissionTimer(type == TFTPConnection.ConnectionType.READ ? READ_TIMEOUT : WRITE_TIMEOUT);
+
+        //Load
+        throwError = false;
+
+        if (type == TFTPConnection.ConnectionType.READ)
+        {
+            try
+            {
+                fileBlockSource = new FileBlockSource(targetFile);
+                //A client that already has the start of the file tells us how much, anything past the end of the
+                //file just means there is nothing left to send
+                resumeOffset = Math.min(requestedResumeOffset(requestOptions), fileBlockSource.size());
+                if (blockCache != null)
+                {
+                    canonicalPath = targetFile.getCanonicalPath();
+                    lastModified = targetFile.lastModified();
+                }
+            }
+            catch (IOException e)
+            {
+                //This happens if we can't read the file, we should notify
+                //the client with an error packet
+                throwError = true;
+                errorCode = 1;
+            }
+        }
+        else
+        {
+            try {
+                //If the file doesn't exist create it
+                this.targetFile.createNewFile();
+
+                //Blocks are gathered up and written by a disk writer thread, so a slow disk doesn't hold up the acknowledgements
+                //A client resuming a write tells us how big its file is, we keep as much of what an earlier attempt
+                //left here as it could have sent and it carries on from there. Otherwise we start the file again
+                long requestedOffset = requestedResumeOffset(requestOptions);
+                FileChannel fileChannel = requestedOffset > 0
+                        ? FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE)
+                        : FileChannel.open(targetFile.toPath(), StandardOpenOption.WRITE, StandardOpenOption.TRUNCATE_EXISTING);
+                resumeOffset = Math.min(requestedOffset, fileChannel.size());
+                fileWriter = new WriteBehindFile(fileChannel, resumeOffset);
+
+            } catch (IOException e) {
+                //This happens if we can't create/access the file
+                //We should notify the client with an error packet
+                throwError = true;
+                errorCode = 2;
+            }
+        }
+
+        negotiateOptions(requestOptions);
+    }
+
+    private void negotiateOptions(Map<String, String> requestOptions)
+    {
+        //Any option we don't understand or don't like the value of is simply left out of the OACK
+        //the client then falls back to the default for it
+        if (throwError) return;
+
+        String requestedWindowSize = requestOptions.get("windowsize");
+        if (requestedWindowSize != null && type == TFTPConnection.ConnectionType.READ)
+        {
+            try
+            {
+                int value = Integer.parseInt(requestedWindowSize.trim());
+                if (value >= 1 && value <= 65535)
+                {
+                    windowSize = value;
+                    acceptedOptions.put("windowsize", Integer.toString(value));
+                }
+            }
+            catch (NumberFormatException ignored) { }
+        }
+
+        String requestedBlockSize = requestOptions.get("blksize");
+        if (requestedBlockSize != null)
+        {
+            try
+            {
+                //RFC 2348 allows anything from 8 to 65464 bytes
+                //We are allowed to answer with something smaller than asked for, but never bigger
+                //A window is at least one block, so a block has to fit in the window's share of the budget on its own
+                int value = Integer.parseInt(requestedBlockSize.trim());
+                if (value >= 8)
+                {
+                    blockSize = Math.min(value, Math.min(MAX_BLOCK_SIZE, windowShare() - 4));
+                    acceptedOptions.put("blksize", Integer.toString(blockSize));
+                }
+            }
+            catch (NumberFormatException ignored) { }
+        }
+
+        //Done once both options are known (whichever order they came in), RFC 7440 lets us answer with a smaller window than the client asked for
+        int maxWindowSize = Math.max(1, windowShare() / (blockSize + 4));
+        if (windowSize > maxWindowSize)
+        {
+            windowSize = maxWindowSize;
+            acceptedOptions.put("windowsize", Integer.toString(windowSize));
+        }
+
+        if (requestOptions.containsKey("offset"))
+        {
+            //Always answered, with where we are really starting from, so the client knows what it still has to do
+            acceptedOptions.put("offset", Long.toString(resumeOffset));
+        }
+    }
+
+    //The "offset" the client asked for in bytes, 0 if it didn't ask or the value is no good
+    private static long requestedResumeOffset(Map<String, String> requestOptions)
+    {
+        String requestedOffset = requestOptions.get("offset");
+        if (requestedOffset == null) return 0;
+        try
+        {
+            return Math.max(0, Long.parseLong(requestedOffset.trim()));
+        }
+        catch (NumberFormatException e)
+        {
+            return 0;
+        }
+    }
+
+    public static void setBlockCache(BlockCache cache) {
+        blockCache = cache;
+    }
+
+    public static void setReadAhead(boolean enabled) {
+        readAheadEnabled = enabled;
+    }
+
+    public static void setWindowBudget(int bytes) {
+        //Room for at least one of the smallest blocks, in the window and in the read ahead ring
+        windowBudget = Math.max(2 * (8 + 4), bytes);
+    }
+
+    //The part of the window budget the window itself can have
+    private static int windowShare() {
+        return readAheadEnabled ? windowBudget / 2 : windowBudget;
+    }
+
+    public static int getWindowBudget() {
+        return windowBudget;
+    }
+
+    public TFTPConnection.ConnectionType getType() {
+        return type;
+    }
+
+    public InetAddress getClientAddress() {
+        return clientAddress;
+    }
+
+    public int getClientPort() {
+        return clientPort;
+    }
+
+    public boolean isFinished() {
+        return finished;
+    }
+
+    public boolean hasThrownError() {
+        return throwError;
+    }
+
+    public long getRetryDeadline() {
+        return retryDeadline;
+    }
+
+    //Biggest packet the client is allowed to send us
+    public int getMaxPacketSize() {
+        return blockSize + 4;
+    }
+
+    //Most bytes we send back to back without waiting to hear from the client, a whole window of DATA packets
+    //Never more than the window budget, negotiateOptions has already cut the window down to fit
+    public int getBurstSize() {
+        if (type == TFTPConnection.ConnectionType.READ)
+        {
+            return (int)Math.min(windowBudget, (long)windowSize * (blockSize + 4));
+        }
+        return 4;
+    }
+
+    public void start(PacketSender sender, long now) throws IOException
+    {
+        start(sender, null, now);
+    }
+
+    //onBlocksReady is for drivers that mustn't wait on the disk (see ReadAhead), it is called from the disk reader
+    //whenever a block the transfer was held up on has been read, and the driver should then call onBlocksReady on
+    //its own thread. Without it reading ahead waits for the block instead
+    public void start(PacketSender sender, Runnable onBlocksReady, long now) throws IOException
+    {
+        this.sender = sender;
+        ServerMetrics.SHARED.transferStarted(type);
+
+        if (throwError)
+        {
+            //Then we want to end the operation after we have sent the error packet
+            sendError();
+
+            if (type == TFTPConnection.ConnectionType.READ)
+            {
+                failure = "error " + errorCode + ": file could not be read from";
+            }
+            else
+            {
+                failure = "error " + errorCode + ": file could not be written to";
+            }
+            finish();
+            return;
+        }
+
+        //In read case we need to immediately send the first block of data and then wait for acknowledgement from the client
+        //In the write case we need to send a 0th block acknowledgement packet and wait for the first set of data, we need to do this so the client knows our TID
+        //without it, the client can't send the data
+        //If options were agreed we send an OACK first instead, for reads the client confirms it with the 0th acknowledgement
+        //for writes it stands in for the 0th acknowledgement
+        if (!acceptedOptions.isEmpty())
+        {
+            optionsBuffer = buildOptionsAcknowledgement();
+        }
+
+        if (type == TFTPConnection.ConnectionType.READ)
+        {
+            windowBuffers = new ByteBuffer[windowSize];
+            for (int i = 0; i < windowSize; i++)
+            {
+                windowBuffers[i] = PacketBufferPool.SHARED.acquire(blockSize + 4);
+            }
+            windowSentTimes = new long[windowSize];
+            windowResent = new boolean[windowSize];
+            long bytesToSend = fileBlockSource.size() - resumeOffset;
+            //On an event loop every READ reads through one, even a file of less than a block, so the loop never reads
+            //the disk (or waits on the BlockCache) itself. The server doesn't allow turning read ahead off there
+            if (onBlocksReady != null || (readAheadEnabled && bytesToSend >= blockSize))
+            {
+                //One window ahead is enough to have it ready by the time the client acknowledges this one, and no more
+                //than the file has. That is never more than the window's share of the budget, the ring has the rest
+                int ringDepth = (int)Math.min(windowSize, bytesToSend / blockSize + 1);
+                FileBlockSource source = fileBlockSource;
+                readAhead = new ReadAhead((blockIndex, buffer) -> fillBlock(source, blockIndex, buffer), bytesToSend, blockSize, ringDepth, onBlocksReady);
+            }
+
+            if (optionsBuffer != null)
+            {
+                negotiating = true;
+                sendPacket(optionsBuffer);
+                optionsSentAt = now;
+                retryDeadline = now + retransmissionTimer.getTimeout();
+            }
+            else
+            {
+                fillAndSendWindow(now);
+            }
+        }
+        else
+        {
+            //op code, then block number. Each 2 bytes
+            returnBuffer = PacketBufferPool.SHARED.acquire(4);
+            returnBuffer.put(0, (byte)0);
+            returnBuffer.put(1, (byte)4);
+            sendWriteAcknowledgement(now, false);
+        }
+    }
+
+    //The packet runs from position 0 to the buffer's limit, it is only ours to look at until we return
+    //Drivers connect their channel to the client, so anything sent from somewhere irrelevant never gets this far
+    public void onPacket(ByteBuffer packet, long now) throws IOException
+    {
+        if (finished || packet.limit() < 4) return;
+
+        if (type == TFTPConnection.ConnectionType.READ)
+        {
+            onReadPacket(packet, now);
+        }
+        else
+        {
+            onWritePacket(packet, now);
+        }
+    }
+
+    //A block the window was held up on has been read, carry on filling (and sending) it
+    public void onBlocksReady(long now) throws IOException
+    {
+        if (finished || negotiating || type != TFTPConnection.ConnectionType.READ) return;
+        fillAndSendWindow(now);
+    }
+
+    public void onTimeout(long now) throws IOException
+    {
+        if (finished) return;
+        if (dallying)
+        {
+            //Backing off the way the client does, so we are still here if a few of its resends go missing too
+            if (++dallyTimeouts >= DALLY_TIMEOUTS)
+            {
+                //The client has stopped sending the final block, so it must have our acknowledgement
+                finish();
+                return;
+            }
+            dallyTimeout *= 2;
+            retryDeadline = now + dallyTimeout;
+            return;
+        }
+        ServerMetrics.SHARED.timeout();
+
+        if (!retransmissionTimer.onTimeout())
+        {
+            //The client has gone quiet for good, there is no point resending forever
+            failure = "timed out: no reply after " + RetransmissionTimer.MAX_RETRIES + " retries";
+            throwError = true;
+            finish();
+            return;
+        }
+
+        if (type == TFTPConnection.ConnectionType.READ)
+        {
+            if (negotiating)
+            {
+                sendPacket(optionsBuffer);
+                countRetransmit();
+                optionsResent = true;
+                retryDeadline = now + retransmissionTimer.getTimeout();
+            }
+            else
+            {
+                //Resend everything after the last block the client confirmed
+                lastSentBlock = lastAcknowledgedBlock;
+                fillAndSendWindow(now);
+            }
+        }
+        else
+        {
+            sendWriteAcknowledgement(now, true);
+        }
+    }
+
+    private void onReadPacket(ByteBuffer acknowledgementData, long now) throws IOException
+    {
+        if (acknowledgementData.get(1) == 5)
+        {
+            //Client gave up on the transfer (or rejected our OACK)
+            onClientError(acknowledgementData);
+            return;
+        }
+
+        if (acknowledgementData.get(1) != 4) return; //Not the proper opcode
+
+        //This is the inversion of the simple bitwise operations we performed when building the block
+        int sentBlockNumber = ((acknowledgementData.get(2) & 0xff) << 8) | (acknowledgementData.get(3) & 0xff);
+
+        if (negotiating)
+        {
+            if (sentBlockNumber == 0)
+            {
+                negotiating = false;
+                onReply(now, optionsSentAt, optionsResent);
+                fillAndSendWindow(now);
+            }
+            return;
+        }
+
+        //Sliding window sender (RFC 7440)
+        //Up to windowSize blocks are sent before we wait, the client acknowledges the last block of each window
+        //(or the last block it got in order if it notices a gap) and the window slides up to that block
+        //How far past the last acknowledged block this acknowledgement is
+        //Anything outside of the window is assumed to be a stale packet and ignored
+        int acknowledgedDistance = (sentBlockNumber - lastAcknowledgedBlock) & 0xFFFF;
+
+        if (acknowledgedDistance > lastSentBlock - lastAcknowledgedBlock) return;
+
+        lastAcknowledgedBlock += acknowledgedDistance;
+        if (acknowledgedDistance > 0)
+        {
+            //Time the round trip from when the acknowledged block went out
+            int slot = lastAcknowledgedBlock % windowSize;
+            onReply(now, windowSentTimes[slot], windowResent[slot]);
+        }
+
+        if (lastAcknowledgedBlock == finalBlock)
+        {
+            completed = true;
+            finish();
+            return;
+        }
+
+        if (lastAcknowledgedBlock < lastSentBlock)
+        {
+            //The client is telling us it missed the block after this one
+            //so go back and send the rest of the window again
+            lastSentBlock = lastAcknowledgedBlock;
+        }
+
+        fillAndSendWindow(now);
+    }
+
+    private void fillAndSendWindow(long now) throws IOException
+    {
+        //Read the next blocks of the file into any free slots of the window
+        while (finalBlock == -1 && lastFilledBlock < lastAcknowledgedBlock + windowSize)
+        {
+            lastFilledBlock++;
+            ByteBuffer bufferToFill = windowBuffers[lastFilledBlock % windowSize];
+            bufferToFill.clear();
+            //OPCODE
+            bufferToFill.put((byte)0);
+            bufferToFill.put((byte)3);
+            //We perform some basic bitwise operations to split this across two bytes
+            bufferToFill.put((byte)((lastFilledBlock >> 8) & 0xFF));
+            bufferToFill.put((byte)(lastFilledBlock & 0xFF));
+
+            int dataLength = readAhead != null ? readAhead.take(lastFilledBlock - 1, bufferToFill) : fillBlock(fileBlockSource, lastFilledBlock - 1, bufferToFill);
+            if (dataLength == ReadAhead.NOT_READY)
+            {
+                //Still on its way from the disk, send what we have and fill the rest once it is here
+                lastFilledBlock--;
+                break;
+            }
+            //Limit is now the end of the packet
+            bufferToFill.flip();
+
+            if (dataLength < blockSize)
+            {
+                finalBlock = lastFilledBlock;
+            }
+        }
+
+        if (readAhead != null && finalBlock == -1)
+        {
+            //Block numbers start at 1 but block indexes at 0, so this is the window after the one we have filled
+            readAhead.readUpTo(lastFilledBlock + windowSize);
+        }
+
+        //Send everything in the window that hasn't been sent yet
+        boolean sentAnything = false;
+        while (lastSentBlock < lastFilledBlock)
+        {
+            lastSentBlock++;
+            int slot = lastSentBlock % windowSize;
+            sendPacket(windowBuffers[slot]);
+            windowSentTimes[slot] = now;
+            windowResent[slot] = lastSentBlock <= highestSentBlock;
+            ServerMetrics.SHARED.dataSent(windowBuffers[slot].limit() - 4);
+            if (windowResent[slot])
+            {
+                countRetransmit();
+            }
+            else
+            {
+                fileBytes += windowBuffers[slot].limit() - 4;
+                if (!firstByteRecorded)
+                {
+                    recordFirstByte();
+                }
+            }
+            highestSentBlock = Math.max(highestSentBlock, lastSentBlock);
+            sentAnything = true;
+        }
+
+        if (sentAnything)
+        {
+            retryDeadline = now + retransmissionTimer.getTimeout();
+        }
+
+        //Stop-and-wait clients that didn't negotiate options never acknowledge the final block
+        //so we are done as soon as it has been sent
+        if (optionsBuffer == null && lastSentBlock == finalBlock)
+        {
+            completed = true;
+            finish();
+        }
+    }
+
+    private int fillBlock(FileBlockSource source, long blockIndex, ByteBuffer buffer)
+    {
+        //Read the whole block in one go, this is only short once we reach the end of the file
+        //A read error is treated the same as the end of the file
+        try {
+            //The blocks of a resumed read don't line up with everyone else's, so they aren't worth caching
+            if (blockCache != null && resumeOffset == 0)
+            {
+                //Other transfers of the same file (with the same block size) share the block instead of reading it again
+                BlockCache.BlockKey key = new BlockCache.BlockKey(canonicalPath, lastModified, source.size(), blockSize, blockIndex);
+                return blockCache.read(key, source, buffer);
+            }
+            //An absolute read, with read ahead on it is the disk reader that reads most blocks rather than us
+            return source.read(resumeOffset + blockIndex * blockSize, buffer, blockSize);
+        } catch (IOException e) {
+            return 0;
+        }
+    }
+
+    private void onWritePacket(ByteBuffer blockData, long now) throws IOException
+    {
+        if (blockData.get(1) != 3)
+        {
+            if (blockData.get(1) == 5)
+            {
+                //Client gave up on the transfer
+                onClientError(blockData);
+            }
+            return;
+        }
+
+        if (dallying)
+        {
+            //Only the final block can still be coming, our acknowledgement of it was lost
+            //The client doubles its wait each time it resends, so the next copy is about twice as far off as this one was
+            dallyTimeout = Math.max(dallyTimeout, 2 * (now - finalBlockAt));
+            dallyTimeouts = 0;
+            finalBlockAt = now;
+            sendWriteAcknowledgement(now, true);
+            retryDeadline = now + dallyTimeout;
+            return;
+        }
+
+        int sentBlockNumber = ((blockData.get(2) & 0xff) << 8) | (blockData.get(3) & 0xff);
+
+        //We add 1 to the block number as we can't increase block number until the correct packet
+        //has been received. This is because we might the ack packet again
+        //Block numbers are only 2 bytes on the wire so compare them that way, they wrap on long transfers
+        if (sentBlockNumber != ((blockNumber + 1) & 0xFFFF))
+        {
+            //Most likely our last acknowledgement was lost, so send it again
+            sendWriteAcknowledgement(now, true);
+            return;
+        }
+
+        //Anything shorter than a full block is the final block of data
+        //We use the packet length rather than looking for blank space so files ending in 0 bytes survive
+        int lengthOfActualData = blockData.limit() - 4;
+        blockData.position(4);
+        try
+        {
+            if (!fileWriter.tryWrite(blockData))
+            {
+                //The disk is behind, leave the block unacknowledged and the client will send it again
+                return;
+            }
+        }
+        catch (IOException e)
+        {
+            //An earlier block couldn't be written (most likely the disk is full)
+            throwError = true;
+            errorCode = 3;
+            failure = "error 3: " + e.getMessage();
+            sendError();
+            finish();
+            return;
+        }
+        onReply(now, acknowledgementSentAt, acknowledgementResent);
+        ServerMetrics.SHARED.dataReceived(lengthOfActualData);
+        fileBytes += lengthOfActualData;
+        if (!firstByteRecorded)
+        {
+            recordFirstByte();
+        }
+        blockNumber++;
+        sendWriteAcknowledgement(now, false);
+
+        if (lengthOfActualData < blockSize)
+        {
+            //Every block is in, but the client only reports success once it has our acknowledgement of the last one
+            //If that goes missing the client sends the block again, so stay around long enough to acknowledge it
+            //again before finishing (the "dally" from RFC 1350)
+            //The file is closed (and the transfer logged) now though, so a client that reads it straight back gets all of it
+            completed = true;
+            dallying = true;
+            closeFileWriter(true, true, System.nanoTime() - requestReceivedAt);
+            dallyTimeout = Math.max(DALLY_FIRST_TIMEOUT, retransmissionTimer.getTimeout());
+            finalBlockAt = now;
+            retryDeadline = now + dallyTimeout;
+        }
+    }
+
+    private void sendWriteAcknowledgement(long now, boolean resend) throws IOException
+    {
+        //On the first iteration this will be the special 0th packet (or the OACK) to signify to the client their
+        //request has been accepted
+        if (blockNumber == 0 && optionsBuffer != null)
+        {
+            sendPacket(optionsBuffer);
+        }
+        else
+        {
+            //Convert single int "blockNumber" into 2 bytes using binary operations
+            returnBuffer.put(2, (byte)((blockNumber >> 8) & 0xFF));
+            returnBuffer.put(3, (byte)(blockNumber & 0xFF));
+            sendPacket(returnBuffer);
+        }
+        if (resend)
+        {
+            countRetransmit();
+        }
+        acknowledgementSentAt = now;
+        acknowledgementResent = resend;
+        retryDeadline = now + retransmissionTimer.getTimeout();
+    }
+
+    private void onClientError(ByteBuffer errorPacket)
+    {
+        int clientErrorCode = ((errorPacket.get(2) & 0xff) << 8) | (errorPacket.get(3) & 0xff);
+        ServerMetrics.SHARED.errorReceived(clientErrorCode);
+        failure = "client error " + clientErrorCode;
+        //The transfer didn't get to the end, so it counts as failed
+        throwError = true;
+        finish();
+    }
+
+    private void sendError() throws IOException
+    {
+        errorBuffer = PacketBufferPool.SHARED.acquire(4);
+        errorBuffer.put(0, (byte)0);
+        errorBuffer.put(1, (byte)5); //Error opcode
+        errorBuffer.put(2, (byte)0);
+        errorBuffer.put(3, (byte)errorCode);
+        sender.send(errorBuffer);
+        ServerMetrics.SHARED.errorSent(errorCode);
+    }
+
+    private void countRetransmit()
+    {
+        retransmits++;
+        ServerMetrics.SHARED.retransmit();
+    }
+
+    private void recordFirstByte()
+    {
+        firstByteRecorded = true;
+        ServerMetrics.SHARED.firstByte(System.nanoTime() - requestReceivedAt);
+    }
+
+    private void onReply(long now, long sentAt, boolean resent)
+    {
+        //Karn's rule, a reply to something we sent more than once can't be timed
+        if (resent)
+        {
+            retransmissionTimer.onProgress();
+        }
+        else
+        {
+            retransmissionTimer.onRoundTrip(now - sentAt);
+        }
+    }
+
+    private void sendPacket(ByteBuffer packet) throws IOException
+    {
+        //Sending moves the position along, so start from the top each time (we resend the same buffers)
+        packet.rewind();
+        sender.send(packet);
+    }
+
+    private ByteBuffer buildOptionsAcknowledgement()
+    {
+        //OACK opcode followed by each accepted option name and value as zero terminated strings
+        ByteArrayOutputStream optionsBytes = new ByteArrayOutputStream();
+        optionsBytes.write(0);
+        optionsBytes.write(6);
+        for (Map.Entry<String, String> option : acceptedOptions.entrySet())
+        {
+            optionsBytes.writeBytes(option.getKey().getBytes(StandardCharsets.US_ASCII));
+            optionsBytes.write(0);
+            optionsBytes.writeBytes(option.getValue().getBytes(StandardCharsets.US_ASCII));
+            optionsBytes.write(0);
+        }
+        ByteBuffer optionsPacket = PacketBufferPool.SHARED.acquire(optionsBytes.size());
+        optionsPacket.put(optionsBytes.toByteArray()).flip();
+        return optionsPacket;
+    }
+
+    //Closes the file and hands our buffers back to the pool, safe to call more than once (e.g. from a shutdown hook)
+    //Nothing is sent once we are finished, so the buffers are free to go to the next transfer straight away
+    public void finish()
+    {
+        //Transfers that never started (e.g. the server shut down first) were never counted
+        boolean record = !finished && sender != null;
+        boolean succeeded = completed && !throwError;
+        long duration = System.nanoTime() - requestReceivedAt;
+        if (!succeeded && failure == null)
+        {
+            failure = "aborted";
+        }
+
+        finished = true;
+        releaseBuffers();
+        if (readAhead != null)
+        {
+            //The disk reader may still be reading from the file
+            FileBlockSource source = fileBlockSource;
+            readAhead.close(() -> {
+                try {
+                    source.close();
+                } catch (IOException e) {
+                    System.err.println(e);
+                }
+            });
+            readAhead = null;
+            fileBlockSource = null;
+        }
+        try {
+            if (fileBlockSource != null) fileBlockSource.close();
+        } catch (IOException e) {
+            throw new RuntimeException(e);
+        }
+
+        if (fileWriter != null)
+        {
+            closeFileWriter(succeeded, record, duration);
+        }
+        else if (record && !dallying)
+        {
+            //A WRITE that was dallying was recorded when its file was closed
+            recordFinished(succeeded, failure, duration);
+        }
+    }
+
+    private void closeFileWriter(boolean succeeded, boolean record, long duration)
+    {
+        //The client already has its final acknowledgement, a WRITE only counts as done once the file is on disk
+        //(only synced if every block arrived, there's no point waiting on the disk for half a file)
+        fileWriter.close(succeeded, diskError -> {
+            if (!record) return;
+            if (diskError != null && succeeded)
+            {
+                recordFinished(false, "error 3: " + diskError.getMessage(), duration);
+            }
+            else
+            {
+                recordFinished(succeeded, failure, duration);
+            }
+        });
+        fileWriter = null;
+    }
+
+    private void recordFinished(boolean succeeded, String failure, long duration)
+    {
+        ServerMetrics.SHARED.transferFinished(type, succeeded, duration, retransmits);
+        TransferLog.SHARED.log(new TransferLog.Entry(type, clientAddress, clientPort, targetFile.getPath(), fileBytes, duration,
+                succeeded ? "ok" : failure, blockSize, windowSize, retransmits));
+    }
+
+    private void releaseBuffers()
+    {
+        if (windowBuffers != null)
+        {
+            for (ByteBuffer windowBuffer : windowBuffers)
+            {
+                PacketBufferPool.SHARED.release(windowBuffer);
+            }
+            windowBuffers = null;
+        }
+        if (optionsBuffer != null)
+        {
+            PacketBufferPool.SHARED.release(optionsBuffer);
+            optionsBuffer = null;
+        }
+        if (returnBuffer != null)
+        {
+            PacketBufferPool.SHARED.release(returnBuffer);
+            returnBuffer = null;
+        }
+        if (errorBuffer != null)
+        {
+            PacketBufferPool.SHARED.release(errorBuffer);
+            errorBuffer = null;
+        }
+    }
+}
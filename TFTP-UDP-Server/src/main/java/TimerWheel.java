@@ -0,0 +1,98 @@
+import java.util.ArrayList;
+import java.util.List;
+import java.util.function.Consumer;
+
+//Hashed timer wheel for transfer retry deadlines, owned by a single TFTPEventLoop thread (so not thread safe)
+//Each slot covers tickLength ms, a deadline further away than one turn of the wheel just sits in its slot
+//for however many turns it needs
+//Timers are never cancelled, when one fires we check it is still the transfer's current timer and ignore it otherwise
+//The handle is whatever the owner needs to get back to the transfer's socket when the timer fires
+public class TimerWheel<T> {
+
+    private static class Timer<T>{
+        final TFTPTransfer transfer;
+        final T handle;
+        final long deadline;
+        final long tick;
+
+        Timer(TFTPTransfer transfer, T handle, long deadline, long tick)
+        {
+            this.transfer = transfer;
+            this.handle = handle;
+            this.deadline = deadline;
+            this.tick = tick;
+        }
+    }
+
+    private final long tickLength;
+    private final List<List<Timer<T>>> slots;
+    //Last tick we have fired the timers for
+    private long currentTick;
+
+    public TimerWheel(long tickLength, int wheelSize, long now)
+    {
+        this.tickLength = tickLength;
+        this.slots = new ArrayList<>(wheelSize);
+        for (int i = 0; i < wheelSize; i++)
+        {
+            slots.add(new ArrayList<>());
+        }
+        this.currentTick = now / tickLength;
+    }
+
+    public void schedule(TFTPTransfer transfer, T handle)
+    {
+        long deadline = transfer.getRetryDeadline();
+
+        //If the transfer already has a timer that goes off sooner we leave it, when it fires the transfer will
+        //simply be put back in the wheel for its real deadline
+        if (transfer.scheduledDeadline != -1 && transfer.scheduledDeadline <= deadline) return;
+
+        //Round up so we never fire early, and never put anything in a slot we have already passed
+        long tick = Math.max((deadline + tickLength - 1) / tickLength, currentTick + 1);
+        transfer.scheduledDeadline = deadline;
+        slots.get((int)(tick % slots.size())).add(new Timer<>(transfer, handle, deadline, tick));
+    }
+
+    //Fires every timer up to the current time
+    public void advance(long now, Consumer<T> onExpired)
+    {
+        long nowTick = now / tickLength;
+        while (currentTick < nowTick)
+        {
+            currentTick++;
+            List<Timer<T>> slot = slots.get((int)(currentTick % slots.size()));
+
+            //Swap remove so we don't shuffle the whole slot along each time
+            int i = 0;
+            while (i < slot.size())
+            {
+                Timer<T> timer = slot.get(i);
+                if (timer.tick > currentTick)
+                {
+                    //Not due until a later turn of the wheel
+                    i++;
+                    continue;
+                }
+
+                Timer<T> last = slot.remove(slot.size() - 1);
+                if (i < slot.size())
+                {
+                    slot.set(i, last);
+                }
+
+                //Stale timers (the transfer has since been given an earlier one) are dropped
+                if (timer.transfer.scheduledDeadline == timer.deadline)
+                {
+                    timer.transfer.scheduledDeadline = -1;
+                    onExpired.accept(timer.handle);
+                }
+            }
+        }
+    }
+
+    public long millisUntilNextTick(long now)
+    {
+        return Math.max(1, (currentTick + 1) * tickLength - now);
+    }
+}
@@ -0,0 +1,185 @@
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Consumer;
+
+//The file a WRITE transfer is receiving, written behind the network
+//Blocks are copied into a big staging chunk and each full chunk is handed to a disk writer thread, so acknowledging a
+//block never waits on the disk. Each file only has a few chunks, once they are all queued up for the disk (it has
+//fallen behind) tryWrite turns blocks away and the transfer doesn't acknowledge them. The client then sends them again
+//later, which slows it down to what the disk can take
+//The file is only synced to disk once, when the transfer has finished
+//A resumed write starts part way into the file, keeping what is already there before that point
+public class WriteBehindFile {
+
+    //The largest buffer the PacketBufferPool hands out, fits any block
+    private static final int CHUNK_SIZE = 128 * 1024;
+    private static final int MAX_CHUNKS = 4;
+
+    //Shared by every transfer, each file always goes to the same one so its chunks are written in order
+    private static final ExecutorService[] DISK_WRITERS = new ExecutorService[2];
+    private static final AtomicInteger nextDiskWriter = new AtomicInteger();
+
+    static
+    {
+        for (int i = 0; i < DISK_WRITERS.length; i++)
+        {
+            String name = "DiskWriter-" + i;
+            DISK_WRITERS[i] = Executors.newSingleThreadExecutor(runnable -> {
+                Thread thread = new Thread(runnable, name);
+                thread.setDaemon(true);
+                return thread;
+            });
+        }
+
+        Runtime.getRuntime().addShutdownHook(new Thread(() -> {
+            //Let anything already queued reach the file before we go
+            for (ExecutorService diskWriter : DISK_WRITERS)
+            {
+                diskWriter.shutdown();
+            }
+            try {
+                for (ExecutorService diskWriter : DISK_WRITERS)
+                {
+                    diskWriter.awaitTermination(5, TimeUnit.SECONDS);
+                }
+            } catch (InterruptedException ignored) { }
+        }));
+    }
+
+    private final FileChannel fileChannel;
+    private final ExecutorService diskWriter;
+
+    //Chunks that are free to be filled, the disk writer puts each one back here once it has been written
+    private final ArrayBlockingQueue<ByteBuffer> freeChunks = new ArrayBlockingQueue<>(MAX_CHUNKS);
+    private int allocatedChunks;
+    //Being filled by the transfer, null until the next block arrives
+    private ByteBuffer chunk;
+    //Where in the file the current chunk goes
+    private long chunkPosition;
+    //The first write to fail, everything after it is skipped
+    private volatile IOException failure;
+    private boolean closed;
+
+    public WriteBehindFile(FileChannel fileChannel, long startPosition)
+    {
+        this.fileChannel = fileChannel;
+        this.chunkPosition = startPosition;
+        this.diskWriter = DISK_WRITERS[Math.floorMod(nextDiskWriter.getAndIncrement(), DISK_WRITERS.length)];
+    }
+
+    //Takes everything between the data's position and limit, or nothing and returns false if the disk is too far behind
+    //Throws the error from an earlier write that failed
+    public boolean tryWrite(ByteBuffer data) throws IOException
+    {
+        if (failure != null) throw failure;
+
+        if (chunk != null && chunk.remaining() < data.remaining())
+        {
+            submitChunk();
+        }
+
+        if (chunk == null)
+        {
+            chunk = freeChunks.poll();
+            if (chunk == null)
+            {
+                if (allocatedChunks == MAX_CHUNKS) return false;
+                allocatedChunks++;
+                chunk = PacketBufferPool.SHARED.acquire(CHUNK_SIZE);
+            }
+            chunk.clear();
+        }
+
+        chunk.put(data);
+        return true;
+    }
+
+    //Writes out whatever is left, syncs the file (if sync is set) and closes it, all on the disk writer
+    //A synced file is also cut off where our writes ended, as a resumed write can go over a longer file
+    //onClosed is then called there with the first error the file had, or null if everything was written
+    public void close(boolean sync, Consumer<IOException> onClosed)
+    {
+        if (closed) return;
+        closed = true;
+
+        if (chunk != null && chunk.position() > 0)
+        {
+            submitChunk();
+        }
+        else if (chunk != null)
+        {
+            freeChunks.offer(chunk);
+            chunk = null;
+        }
+
+        runOnDiskWriter(() -> {
+            try {
+                if (sync && failure == null)
+                {
+                    fileChannel.truncate(chunkPosition);
+                    //Metadata too, the file has most likely grown
+                    fileChannel.force(true);
+                }
+            } catch (IOException e) {
+                failure = e;
+            }
+            try {
+                fileChannel.close();
+            } catch (IOException e) {
+                if (failure == null) failure = e;
+            }
+
+            //Every chunk is back by now, the disk writer runs this file's work in order
+            ByteBuffer freeChunk;
+            while ((freeChunk = freeChunks.poll()) != null)
+            {
+                PacketBufferPool.SHARED.release(freeChunk);
+            }
+            onClosed.accept(failure);
+        });
+    }
+
+    private void submitChunk()
+    {
+        ByteBuffer chunkToWrite = chunk;
+        long position = chunkPosition;
+        chunkPosition += chunkToWrite.position();
+        chunk = null;
+
+        chunkToWrite.flip();
+        runOnDiskWriter(() -> {
+            try {
+                //Positioned writes, so the file's own position never matters
+                long writePosition = position;
+                while (failure == null && chunkToWrite.hasRemaining())
+                {
+                    writePosition += fileChannel.write(chunkToWrite, writePosition);
+                }
+            } catch (IOException e) {
+                failure = e;
+            } finally {
+                freeChunks.offer(chunkToWrite);
+            }
+        });
+    }
+
+    private void runOnDiskWriter(Runnable work)
+    {
+        try
+        {
+            diskWriter.execute(work);
+        }
+        catch (RejectedExecutionException e)
+        {
+            //Shutting down, the disk writers have stopped taking work so do it here
+            work.run();
+        }
+    }
+}